@@ -1,4 +1,5 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class GLA {
@@ -17,8 +18,11 @@ public class GLA {
     public static class Automat {
         public String name;
         public int numStates;
+        public boolean deterministic;
         public ArrayList<Transition> transitions;
         public LinkedHashMap<Integer, ArrayList<String>> acceptable;
+        // literal rules left out of the automaton, by the actions of the rule that matches them instead
+        public LinkedHashMap<ArrayList<String>, Keywords> keywords = new LinkedHashMap<>();
 
 
         public Automat() {
@@ -29,16 +33,58 @@ public class GLA {
 
     }
 
+    // An edge on the characters symbol..last, a single character when both are equal.
+    // '$' alone is the epsilon label.
     public static class Transition{
         public int from;
         public int to;
         public char symbol;
+        public char last;
 
         public Transition(int from, int to, char symbol) {
+            this(from, to, symbol, symbol);
+        }
+
+        public Transition(int from, int to, char symbol, char last) {
             this.from = from;
             this.to = to;
             this.symbol = symbol;
+            this.last = last;
+        }
+
+        public boolean isEpsilon() {
+            return symbol == '$' && last == '$';
+        }
+    }
+
+    // Splits the characters of a set of edges into elementary intervals
+    // [cuts[k], cuts[k + 1] - 1] that every edge either covers completely or not at all
+    static int[] cuts(Collection<Transition> transitions) {
+        TreeSet<Integer> bounds = new TreeSet<>();
+        for (Transition t : transitions) {
+            bounds.add((int) t.symbol);
+            bounds.add(t.last + 1);
+        }
+        int[] cuts = new int[bounds.size()];
+        int k = 0;
+        for (int bound : bounds)
+            cuts[k++] = bound;
+        return cuts;
+    }
+
+    // Joins neighbouring edges of a list sorted by from and symbol that lead to the same state
+    static ArrayList<Transition> mergeRanges(ArrayList<Transition> sorted) {
+        ArrayList<Transition> merged = new ArrayList<>();
+        Transition previous = null;
+        for (Transition t : sorted) {
+            if (previous != null && previous.from == t.from && previous.to == t.to && previous.last + 1 == t.symbol)
+                previous.last = t.last;
+            else {
+                previous = new Transition(t.from, t.to, t.symbol, t.last);
+                merged.add(previous);
+            }
         }
+        return merged;
     }
 
     public static class StatePair{
@@ -50,164 +96,830 @@ public class GLA {
         }
     }
 
-    private int newState(Automat a) {
-        return a.numStates++;
+    // Subset construction over one lexer state's NFA. Every accepting DFA state keeps
+    // only the actions of the rule listed first in the spec, so LA never has to resolve
+    // priorities at run time. Moves on '$' follow epsilon edges, just like LA.transition.
+    public static Automat determinize(Automat nfa) {
+        ArrayList<ArrayList<Transition>> out = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> epsilon = new ArrayList<>();
+        for (int i = 0; i < nfa.numStates; i++) {
+            out.add(new ArrayList<>());
+            epsilon.add(new ArrayList<>());
+        }
+        for (Transition t : nfa.transitions) {
+            out.get(t.from).add(t);
+            if (t.isEpsilon())
+                epsilon.get(t.from).add(t.to);
+        }
+
+        int[] priority = new int[nfa.numStates];
+        Arrays.fill(priority, -1);
+        ArrayList<ArrayList<String>> actions = new ArrayList<>();
+        for (Map.Entry<Integer, ArrayList<String>> entry : nfa.acceptable.entrySet()) {
+            priority[entry.getKey()] = actions.size();
+            actions.add(entry.getValue());
+        }
+
+        Automat dfa = new Automat();
+        dfa.name = nfa.name;
+        dfa.deterministic = true;
+
+        HashMap<BitSet, Integer> ids = new HashMap<>();
+        ArrayList<BitSet> sets = new ArrayList<>();
+        BitSet startSet = new BitSet();
+        startSet.set(0);
+        closure(startSet, epsilon);
+        ids.put(startSet, 0);
+        sets.add(startSet);
+
+        for (int i = 0; i < sets.size(); i++) {
+            BitSet current = sets.get(i);
+            ArrayList<Transition> edges = new ArrayList<>();
+            int best = -1;
+            for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+                if (priority[s] != -1 && (best == -1 || priority[s] < best))
+                    best = priority[s];
+                edges.addAll(out.get(s));
+            }
+            if (best != -1)
+                dfa.acceptable.put(i, actions.get(best));
+
+            // moves[k] is the target set on the k-th elementary interval, intervals come in
+            // character order so single-character specs number their states as before
+            int[] cuts = cuts(edges);
+            BitSet[] moves = new BitSet[cuts.length];
+            for (Transition t : edges)
+                for (int k = Arrays.binarySearch(cuts, t.symbol); cuts[k] <= t.last; k++)
+                    (moves[k] == null ? moves[k] = new BitSet() : moves[k]).set(t.to);
+
+            ArrayList<Transition> row = new ArrayList<>();
+            for (int k = 0; k < cuts.length; k++) {
+                BitSet target = moves[k];
+                if (target == null) continue;
+                closure(target, epsilon);
+                Integer id = ids.get(target);
+                if (id == null) {
+                    id = sets.size();
+                    ids.put(target, id);
+                    sets.add(target);
+                }
+                row.add(new Transition(i, id, (char) cuts[k], (char) (cuts[k + 1] - 1)));
+            }
+            dfa.transitions.addAll(mergeRanges(row));
+        }
+        dfa.numStates = sets.size();
+        return dfa;
     }
 
-    private boolean isOperator(String exp, int i) {
-        int c = 0;
-        while(i - 1 >= 0 && exp.charAt(i - 1) == '\\') {
-            c++;
-            i--;
+    // Hopcroft minimization of a deterministic automaton. The initial partition groups
+    // accepting states by their action list (token type, UDJI_U_STANJE, VRATI_SE, NOVI_REDAK),
+    // puts all other states in one block and keeps the implicit dead state on its own, so
+    // states that are merely unable to accept are never folded into it.
+    public static Automat minimize(Automat dfa) {
+        int n = dfa.numStates;
+        int sink = n;
+
+        // the alphabet is the elementary intervals of all edges, alphabet[c] is the first
+        // character of interval c
+        int[] alphabet = cuts(dfa.transitions);
+        int symbols = Math.max(0, alphabet.length - 1);
+
+        int[][] delta = new int[n + 1][symbols];
+        for (int[] row : delta)
+            Arrays.fill(row, sink);
+        for (Transition t : dfa.transitions)
+            for (int c = Arrays.binarySearch(alphabet, t.symbol); alphabet[c] <= t.last; c++)
+                delta[t.from][c] = t.to;
+
+        // inverse[c][to] lists the states that enter "to" on interval c
+        ArrayList<ArrayList<ArrayList<Integer>>> inverse = new ArrayList<>();
+        for (int c = 0; c < symbols; c++) {
+            ArrayList<ArrayList<Integer>> in = new ArrayList<>();
+            for (int s = 0; s <= n; s++)
+                in.add(new ArrayList<>());
+            for (int s = 0; s <= n; s++)
+                in.get(delta[s][c]).add(s);
+            inverse.add(in);
+        }
+
+        int[] block = new int[n + 1];
+        ArrayList<ArrayList<Integer>> blocks = new ArrayList<>();
+        HashMap<ArrayList<String>, Integer> byActions = new HashMap<>();
+        int rejecting = -1;
+        for (int s = 0; s < n; s++) {
+            ArrayList<String> actions = dfa.acceptable.get(s);
+            Integer b;
+            if (actions != null)
+                b = byActions.get(actions);
+            else
+                b = rejecting == -1 ? null : rejecting;
+            if (b == null) {
+                b = blocks.size();
+                blocks.add(new ArrayList<>());
+                if (actions != null)
+                    byActions.put(actions, b);
+                else
+                    rejecting = b;
+            }
+            block[s] = b;
+            blocks.get(b).add(s);
+        }
+        block[sink] = blocks.size();
+        blocks.add(new ArrayList<>(List.of(sink)));
+
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        ArrayList<Boolean> inWork = new ArrayList<>();
+        for (int b = 0; b < blocks.size(); b++) {
+            work.add(b);
+            inWork.add(true);
+        }
+
+        int[] hits = new int[n + 1];
+        boolean[] marked = new boolean[n + 1];
+        while (!work.isEmpty()) {
+            int splitter = work.poll();
+            inWork.set(splitter, false);
+            ArrayList<Integer> members = new ArrayList<>(blocks.get(splitter));
+            for (int c = 0; c < symbols; c++) {
+                ArrayList<Integer> entering = new ArrayList<>();
+                for (int s : members)
+                    entering.addAll(inverse.get(c).get(s));
+                for (int s : entering)
+                    marked[s] = true;
+
+                ArrayList<Integer> touched = new ArrayList<>();
+                for (int s : entering)
+                    if (hits[block[s]]++ == 0)
+                        touched.add(block[s]);
+
+                for (int b : touched) {
+                    int count = hits[b];
+                    hits[b] = 0;
+                    if (count == blocks.get(b).size()) continue;
+
+                    ArrayList<Integer> inside = new ArrayList<>();
+                    ArrayList<Integer> outside = new ArrayList<>();
+                    int fresh = blocks.size();
+                    for (int s : blocks.get(b))
+                        (marked[s] ? inside : outside).add(s);
+                    blocks.set(b, outside);
+                    blocks.add(inside);
+                    for (int s : inside)
+                        block[s] = fresh;
+                    if (inWork.get(b) || inside.size() <= outside.size()) {
+                        work.add(fresh);
+                        inWork.add(true);
+                    } else {
+                        work.add(b);
+                        inWork.set(b, true);
+                        inWork.add(false);
+                    }
+                }
+                for (int s : entering)
+                    marked[s] = false;
+            }
         }
-        return c % 2 == 0;
+
+        // renumber blocks so that the start state stays 0
+        int[] newId = new int[blocks.size()];
+        Arrays.fill(newId, -1);
+        int[] representative = new int[blocks.size()];
+        int count = 0;
+        for (int s = 0; s < n; s++)
+            if (newId[block[s]] == -1) {
+                newId[block[s]] = count++;
+                representative[block[s]] = s;
+            }
+
+        Automat min = new Automat();
+        min.name = dfa.name;
+        min.deterministic = true;
+        min.numStates = count;
+        for (int b = 0; b < blocks.size(); b++) {
+            if (newId[b] == -1) continue;
+            int s = representative[b];
+            ArrayList<String> actions = dfa.acceptable.get(s);
+            if (actions != null)
+                min.acceptable.put(newId[b], actions);
+        }
+        ArrayList<Transition> kept = new ArrayList<>();
+        for (Transition t : dfa.transitions)
+            if (representative[block[t.from]] == t.from)
+                kept.add(new Transition(newId[block[t.from]], newId[block[t.to]], t.symbol, t.last));
+        kept.sort((x, y) -> x.from != y.from ? Integer.compare(x.from, y.from) : Character.compare(x.symbol, y.symbol));
+        min.transitions = mergeRanges(kept);
+        return min;
+    }
+
+    // Rewrites a deterministic automaton over chars into one over the bytes of their UTF-8
+    // encoding, for --utf8. The states of dfa keep their numbers and actions, the later bytes of
+    // a character go through new states. A character outside the BMP took a high and then a low
+    // surrogate step in dfa but is one four-byte sequence in UTF-8, so both steps are folded into it.
+    // A match that could end after the high surrogate takes the whole character instead, the
+    // sequence cannot be split between two tokens.
+    public static Automat utf8(Automat dfa) {
+        ArrayList<ArrayList<Transition>> out = new ArrayList<>();
+        for (int i = 0; i < dfa.numStates; i++)
+            out.add(new ArrayList<>());
+        for (Transition t : dfa.transitions)
+            out.get(t.from).add(t);
+
+        Automat bytes = new Automat();
+        bytes.name = dfa.name;
+        bytes.deterministic = true;
+        bytes.numStates = dfa.numStates;
+        bytes.acceptable.putAll(dfa.acceptable);
+        for (int s = 0; s < dfa.numStates; s++) {
+            ArrayList<int[]> sequences = new ArrayList<>();
+            ArrayList<Integer> targets = new ArrayList<>();
+            for (Transition t : out.get(s)) {
+                if (t.symbol < 0xD800)
+                    utf8Sequences(t.symbol, Math.min(t.last, 0xD7FF), sequences);
+                if (t.last > 0xDFFF)
+                    utf8Sequences(Math.max(t.symbol, 0xE000), t.last, sequences);
+                while (targets.size() < sequences.size())
+                    targets.add(t.to);
+
+                int highLo = Math.max(t.symbol, 0xD800);
+                int highHi = Math.min(t.last, 0xDBFF);
+                if (highLo > highHi)
+                    continue;
+                boolean accepts = dfa.acceptable.containsKey(t.to);
+                ArrayList<Transition> lows = new ArrayList<>(out.get(t.to));
+                lows.sort(Comparator.comparingInt(low -> low.symbol));
+                int uncovered = 0xDC00;
+                for (Transition low : lows) {
+                    int lowLo = Math.max(low.symbol, 0xDC00);
+                    int lowHi = Math.min(low.last, 0xDFFF);
+                    if (lowLo > lowHi)
+                        continue;
+                    if (accepts)
+                        surrogatePairs(highLo, highHi, uncovered, lowLo - 1, sequences);
+                    while (targets.size() < sequences.size())
+                        targets.add(t.to);
+                    surrogatePairs(highLo, highHi, lowLo, lowHi, sequences);
+                    while (targets.size() < sequences.size())
+                        targets.add(low.to);
+                    uncovered = lowHi + 1;
+                }
+                if (accepts)
+                    surrogatePairs(highLo, highHi, uncovered, 0xDFFF, sequences);
+                while (targets.size() < sequences.size())
+                    targets.add(t.to);
+            }
+            addSequences(bytes, s, sequences, targets, 0);
+        }
+        bytes.transitions.sort((x, y) -> x.from != y.from ? Integer.compare(x.from, y.from) : Character.compare(x.symbol, y.symbol));
+        return bytes;
     }
-    private static boolean isOperator2(String exp, int i) {
-        int c = 0;
-        while(i - 1 >= 0 && exp.charAt(i - 1) == '\\') {
-            c++;
-            i--;
+
+    // the characters outside the BMP with a high surrogate in highLo..highHi and a low one in lowLo..lowHi
+    static void surrogatePairs(int highLo, int highHi, int lowLo, int lowHi, ArrayList<int[]> out) {
+        if (lowLo > lowHi)
+            return;
+        if (lowLo == 0xDC00 && lowHi == 0xDFFF)
+            utf8Sequences(Character.toCodePoint((char) highLo, (char) lowLo), Character.toCodePoint((char) highHi, (char) lowHi), out);
+        else
+            for (int high = highLo; high <= highHi; high++)
+                utf8Sequences(Character.toCodePoint((char) high, (char) lowLo), Character.toCodePoint((char) high, (char) lowHi), out);
+    }
+
+    // Adds the edges from state for the bytes at depth of sequences, which lead to targets. Byte
+    // ranges covered by the same sequences share one edge, and a new state when they go on.
+    static void addSequences(Automat auto, int from, List<int[]> sequences, List<Integer> targets, int depth) {
+        TreeSet<Integer> bounds = new TreeSet<>();
+        for (int[] seq : sequences) {
+            bounds.add(seq[2 * depth]);
+            bounds.add(seq[2 * depth + 1] + 1);
+        }
+        Integer[] cuts = bounds.toArray(new Integer[0]);
+        ArrayList<Integer> previous = new ArrayList<>();
+        int previousLo = 0;
+        for (int k = 0; k < cuts.length; k++) {
+            ArrayList<Integer> covering = new ArrayList<>();
+            if (k + 1 < cuts.length)
+                for (int i = 0; i < sequences.size(); i++)
+                    if (sequences.get(i)[2 * depth] <= cuts[k] && cuts[k] <= sequences.get(i)[2 * depth + 1])
+                        covering.add(i);
+            if (covering.equals(previous))
+                continue;
+            if (!previous.isEmpty()) {
+                char lo = (char) previousLo;
+                char hi = (char) (cuts[k] - 1);
+                int[] first = sequences.get(previous.get(0));
+                if (first.length == 2 * depth + 2) {
+                    // sequences come from disjoint characters, only one can end on these bytes
+                    auto.transitions.add(new Transition(from, targets.get(previous.get(0)), lo, hi));
+                } else {
+                    int next = auto.numStates++;
+                    auto.transitions.add(new Transition(from, next, lo, hi));
+                    ArrayList<int[]> rest = new ArrayList<>();
+                    ArrayList<Integer> restTargets = new ArrayList<>();
+                    for (int i : previous) {
+                        rest.add(sequences.get(i));
+                        restTargets.add(targets.get(i));
+                    }
+                    addSequences(auto, next, rest, restTargets, depth + 1);
+                }
+            }
+            previous = covering;
+            previousLo = cuts[k];
         }
-        return c % 2 == 1;
     }
 
-    private int findMatchingParen(String regex, int start) {
-        int depth = 0;
-        for (int i = start; i < regex.length(); i++) {
-            if (regex.charAt(i) == '(') depth++;
-            else if (regex.charAt(i) == ')') {
-                depth--;
-                if (depth == 0) return i;
+    // Splits the code points lo..hi into sequences of byte ranges lo0, hi0, lo1, hi1... whose
+    // UTF-8 encodings are exactly those code points
+    static void utf8Sequences(int lo, int hi, ArrayList<int[]> out) {
+        if (lo > hi)
+            return;
+        for (int max : new int[]{0x7F, 0x7FF, 0xFFFF})
+            if (lo <= max && max < hi) {
+                utf8Sequences(lo, max, out);
+                utf8Sequences(max + 1, hi, out);
+                return;
+            }
+        for (int i = 1; i < 4; i++) {
+            int m = (1 << 6 * i) - 1;
+            if ((lo & ~m) == (hi & ~m))
+                continue;
+            if ((lo & m) != 0) {
+                utf8Sequences(lo, lo | m, out);
+                utf8Sequences((lo | m) + 1, hi, out);
+                return;
             }
+            if ((hi & m) != m) {
+                utf8Sequences(lo, (hi & ~m) - 1, out);
+                utf8Sequences(hi & ~m, hi, out);
+                return;
+            }
+        }
+        byte[] a = new String(Character.toChars(lo)).getBytes(StandardCharsets.UTF_8);
+        byte[] b = new String(Character.toChars(hi)).getBytes(StandardCharsets.UTF_8);
+        int[] seq = new int[2 * a.length];
+        for (int i = 0; i < a.length; i++) {
+            seq[2 * i] = a[i] & 0xFF;
+            seq[2 * i + 1] = b[i] & 0xFF;
         }
-        return regex.length() - 1;
+        out.add(seq);
     }
 
-    private static boolean containsBracket(String regex){
-        for (int i = 0; i < regex.length(); i++)
-            if (regex.charAt(i) == '{' && !isOperator2(regex, i))
-                return true;
-        return false;
+    private static void closure(BitSet set, ArrayList<ArrayList<Integer>> epsilon) {
+        Stack<Integer> stack = new Stack<>();
+        for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1))
+            stack.push(s);
+        while (!stack.isEmpty())
+            for (int to : epsilon.get(stack.pop()))
+                if (!set.get(to)) {
+                    set.set(to);
+                    stack.push(to);
+                }
     }
 
-    private static int findFirstOpenBracket(String regex){
-        for (int i = 0; i < regex.length(); i++)
-            if (regex.charAt(i) == '{' && !isOperator2(regex, i))
-                return i;
-        return -1;
+    // Regular expression tree: an alternation of Regex or a sequence of atoms. Each atom is one
+    // symbol, a [...] class, a parenthesized group or a {name} reference, optionally under
+    // '*', '+' or '?'.
+    static class Regex {
+        ArrayList<Regex> alternatives;
+        ArrayList<Atom> atoms;
     }
 
-    private static int findFirstClosedBracket(String regex){
-        for (int i = 0; i < regex.length(); i++)
-            if (regex.charAt(i) == '}' && !isOperator2(regex, i))
-                return i;
-        return -1;
+    static class Atom {
+        char symbol;
+        // sorted disjoint inclusive ranges lo0, hi0, lo1, hi1... of a [...] class
+        char[] ranges;
+        Regex group;
+        String ref;
+        // '*', '+', '?' or 0
+        char repeat;
     }
 
-    public  StatePair exchange(String regex, Automat auto){
-        ArrayList<String> poss = new ArrayList<>();
-        int numBrackets = 0;
+    // Parses spec regexes by index range, the text is never copied or spliced. Classes, '+'
+    // and '?' are only operators in %Extended specs, older specs use them as plain characters.
+    static class RegexParser {
+        final String text;
+        final boolean extended;
+
+        RegexParser(String text, boolean extended) {
+            this.text = text;
+            this.extended = extended;
+        }
+
+        Regex parse() {
+            return parse(0, text.length());
+        }
 
-        int start = 0;
-        for(int i = 0; i < regex.length(); i++) {
-            if(regex.charAt(i) == '(' && isOperator(regex, i))
-                numBrackets++;
-            else if(regex.charAt(i) == ')' && isOperator(regex, i))
-                numBrackets--;
-            else if(numBrackets == 0 && regex.charAt(i) == '|' && isOperator(regex, i)) {
-                poss.add(regex.substring(start, i));
-                start = i + 1;
+        // true if an odd number of backslashes precedes i, not looking before from
+        boolean escaped(int i, int from) {
+            int c = 0;
+            while (i - 1 >= from && text.charAt(i - 1) == '\\') {
+                c++;
+                i--;
             }
+            return c % 2 == 1;
         }
 
-        if(!poss.isEmpty())
-            poss.add(regex.substring(start));
+        Regex parse(int from, int to) {
+            Regex regex = new Regex();
+            int depth = 0;
+            int start = from;
+            for (int i = from; i < to; i++) {
+                char c = text.charAt(i);
+                if (escaped(i, from))
+                    continue;
+                if (extended && c == '[')
+                    i = closingBracket(i, to);
+                else if (c == '(')
+                    depth++;
+                else if (c == ')')
+                    depth--;
+                else if (depth == 0 && c == '|') {
+                    if (regex.alternatives == null)
+                        regex.alternatives = new ArrayList<>();
+                    regex.alternatives.add(parse(start, i));
+                    start = i + 1;
+                }
+            }
+            if (regex.alternatives != null) {
+                regex.alternatives.add(parse(start, to));
+                return regex;
+            }
 
-        int leftState = newState(auto);
-        int rightState = newState(auto);
+            regex.atoms = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                Atom atom = new Atom();
+                char c = text.charAt(i);
+                int close;
+                if (c == '\\') {
+                    if (++i == to)
+                        break;
+                    c = text.charAt(i);
+                    atom.symbol = c == 't' ? '\t' : c == 'n' ? '\n' : c == '_' ? ' ' : c;
+                } else if (extended && c == '[') {
+                    close = closingBracket(i, to);
+                    atom.ranges = parseClass(i + 1, close);
+                    i = close;
+                } else if (c == '(') {
+                    close = closingParen(i, to);
+                    atom.group = parse(i + 1, close);
+                    i = close;
+                } else if (c == '{' && (close = text.indexOf('}', i)) != -1 && close < to) {
+                    atom.ref = text.substring(i + 1, close);
+                    i = close;
+                } else {
+                    // '$' stays a symbol, it is the epsilon label
+                    atom.symbol = c;
+                }
+                if (i + 1 < to && (text.charAt(i + 1) == '*' || extended && "+?".indexOf(text.charAt(i + 1)) >= 0)) {
+                    atom.repeat = text.charAt(i + 1);
+                    i++;
+                }
+                regex.atoms.add(atom);
+            }
+            return regex;
+        }
 
-        if(!poss.isEmpty())
-            for(int i = 0; i < poss.size(); i++) {
-                StatePair temp = exchange(poss.get(i), auto);
-                auto.transitions.add(new Transition(leftState, temp.left, '$'));
-                auto.transitions.add(new Transition(temp.right, rightState, '$'));
+        int closingParen(int open, int to) {
+            int depth = 0;
+            for (int i = open; i < to; i++) {
+                if (escaped(i, open))
+                    continue;
+                if (extended && text.charAt(i) == '[')
+                    i = closingBracket(i, to);
+                else if (text.charAt(i) == '(')
+                    depth++;
+                else if (text.charAt(i) == ')' && --depth == 0)
+                    return i;
             }
-        else {
-            boolean prefix = false;
+            return to - 1;
+        }
+
+        int closingBracket(int open, int to) {
+            for (int i = open + 1; i < to; i++)
+                if (text.charAt(i) == ']' && !escaped(i, open + 1))
+                    return i;
+            throw new IllegalArgumentException("Unterminated character class in " + text);
+        }
+
+        // Contents of a class between the brackets: characters, escapes and lo-hi ranges,
+        // complemented over all chars after a leading '^'. A '-' first or last is a character.
+        char[] parseClass(int from, int to) {
+            boolean negated = from < to && text.charAt(from) == '^';
+            if (negated)
+                from++;
+            ArrayList<int[]> ranges = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                int lo = classChar(i);
+                if (text.charAt(i) == '\\')
+                    i++;
+                int hi = lo;
+                if (i + 2 < to && text.charAt(i + 1) == '-') {
+                    i += 2;
+                    hi = classChar(i);
+                    if (text.charAt(i) == '\\')
+                        i++;
+                    if (hi < lo)
+                        throw new IllegalArgumentException("Empty range " + (char) lo + "-" + (char) hi + " in " + text);
+                }
+                ranges.add(new int[]{lo, hi});
+            }
+            ranges.sort(Comparator.comparingInt(r -> r[0]));
+
+            ArrayList<int[]> merged = new ArrayList<>();
+            for (int[] r : ranges)
+                if (!merged.isEmpty() && r[0] <= merged.get(merged.size() - 1)[1] + 1)
+                    merged.get(merged.size() - 1)[1] = Math.max(merged.get(merged.size() - 1)[1], r[1]);
+                else
+                    merged.add(r);
+            if (negated) {
+                ArrayList<int[]> complement = new ArrayList<>();
+                int next = 0;
+                for (int[] r : merged) {
+                    if (r[0] > next)
+                        complement.add(new int[]{next, r[0] - 1});
+                    next = r[1] + 1;
+                }
+                if (next <= Character.MAX_VALUE)
+                    complement.add(new int[]{next, Character.MAX_VALUE});
+                merged = complement;
+            }
+
+            char[] result = new char[2 * merged.size()];
+            for (int k = 0; k < merged.size(); k++) {
+                result[2 * k] = (char) merged.get(k)[0];
+                result[2 * k + 1] = (char) merged.get(k)[1];
+            }
+            return result;
+        }
+
+        // the character at i inside a class, \t, \n and \_ as in the rest of the spec
+        int classChar(int i) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 >= text.length())
+                return c;
+            c = text.charAt(i + 1);
+            return c == 't' ? '\t' : c == 'n' ? '\n' : c == '_' ? ' ' : c;
+        }
+    }
+
+    // Literal rules of one lexer state that a later rule also matches, keywords under the
+    // identifier rule. They are left out of the automaton, so the later rule matches their text
+    // and LA looks its lexemes up here to switch to the literal's actions. The lookup is a
+    // minimal perfect hash: word w sits in slot hash(w, seeds[hash(w, 0) % n]) % n.
+    static class Keywords {
+        // actions of the rule whose lexemes are looked up
+        final ArrayList<String> base;
+        final LinkedHashMap<String, ArrayList<String>> rules = new LinkedHashMap<>();
+        // filled by build(), the words and their actions in slot order
+        String[] words;
+        ArrayList<ArrayList<String>> actions;
+        int[] seeds;
+
+        Keywords(ArrayList<String> base) {
+            this.base = base;
+        }
+
+        // Hash and displace: buckets are placed largest first, each with the first seed that
+        // sends all of its words to free slots
+        void build() {
+            int n = rules.size();
+            ArrayList<ArrayList<String>> buckets = new ArrayList<>();
+            for (int b = 0; b < n; b++)
+                buckets.add(new ArrayList<>());
+            for (String word : rules.keySet())
+                buckets.get(hash(word, 0) % n).add(word);
+            Integer[] order = new Integer[n];
+            for (int b = 0; b < n; b++)
+                order[b] = b;
+            Arrays.sort(order, (x, y) -> buckets.get(y).size() - buckets.get(x).size());
+
+            words = new String[n];
+            seeds = new int[n];
+            for (int b : order) {
+                ArrayList<String> bucket = buckets.get(b);
+                if (bucket.isEmpty())
+                    break;
+                for (int seed = 1; seeds[b] == 0; seed++) {
+                    if (seed == 1 << 20)
+                        throw new IllegalStateException("No perfect hash for the keywords " + rules.keySet());
+                    HashSet<Integer> slots = new HashSet<>();
+                    for (String word : bucket) {
+                        int slot = hash(word, seed) % n;
+                        if (words[slot] != null || !slots.add(slot))
+                            break;
+                    }
+                    if (slots.size() < bucket.size())
+                        continue;
+                    for (String word : bucket)
+                        words[hash(word, seed) % n] = word;
+                    seeds[b] = seed;
+                }
+            }
+
+            actions = new ArrayList<>();
+            for (String word : words)
+                actions.add(rules.get(word));
+        }
+
+        // FNV-1a over the chars with a seed and a final mix, LA and GeneratedLexer hash the same way
+        static int hash(String word, int seed) {
+            int h = 0x811C9DC5 ^ seed * 0x9E3779B9;
+            for (int i = 0; i < word.length(); i++)
+                h = (h ^ word.charAt(i)) * 0x01000193;
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            return h & Integer.MAX_VALUE;
+        }
+    }
+
+    // The text a regex matches when it is a plain word of letters, digits and '_', null otherwise.
+    // The epsilon label '$' is none of these, so a rule with it always stays in the automaton.
+    static String literal(Regex regex) {
+        if (regex.alternatives != null || regex.atoms.isEmpty())
+            return null;
+        StringBuilder word = new StringBuilder();
+        for (Atom atom : regex.atoms) {
+            char c = atom.symbol;
+            if (atom.group != null || atom.ref != null || atom.ranges != null || atom.repeat != 0
+                    || !(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_'))
+                return null;
+            word.append(c);
+        }
+        return word.toString();
+    }
+
+    // true if the automaton accepts word between the states of ends
+    static boolean accepts(Automat nfa, StatePair ends, String word) {
+        ArrayList<ArrayList<Integer>> epsilon = new ArrayList<>();
+        for (int i = 0; i < nfa.numStates; i++)
+            epsilon.add(new ArrayList<>());
+        for (Transition t : nfa.transitions)
+            if (t.isEpsilon())
+                epsilon.get(t.from).add(t.to);
+
+        BitSet current = new BitSet();
+        current.set(ends.left);
+        closure(current, epsilon);
+        for (int i = 0; i < word.length() && !current.isEmpty(); i++) {
+            char c = word.charAt(i);
+            BitSet next = new BitSet();
+            for (Transition t : nfa.transitions)
+                if (!t.isEpsilon() && current.get(t.from) && t.symbol <= c && c <= t.last)
+                    next.set(t.to);
+            closure(next, epsilon);
+            current = next;
+        }
+        return current.get(ends.right);
+    }
+
+    // Files every literal rule of one lexer state that is the first rule to match its word and
+    // that a later rule matches too under that rule in auto.keywords. Without it the later rule
+    // is first for the word, and for every other text the longest match and its rule stay the
+    // same. Returns the rules to leave out, together with repeats of a literal left out, which
+    // never won anything before and must not start winning now.
+    static HashSet<Rule> findKeywords(ArrayList<Rule> rules, ArrayList<Regex> regexes, NfaBuilder builder, Automat auto) {
+        HashSet<Rule> dropped = new HashSet<>();
+        Automat[] nfas = new Automat[rules.size()];
+        StatePair[] ends = new StatePair[rules.size()];
+        for (int k = 0; k < rules.size(); k++) {
+            String word = literal(regexes.get(k));
+            if (word == null)
+                continue;
+
+            int first = -1;
+            for (int i = 0; i <= k && first == -1; i++)
+                if (matches(i, word, regexes, builder, nfas, ends))
+                    first = i;
+            if (first < k) {
+                if (dropped.contains(rules.get(first)))
+                    dropped.add(rules.get(k));
+                continue;
+            }
+
+            for (int j = k + 1; j < rules.size(); j++) {
+                if (word.equals(literal(regexes.get(j))) || !matches(j, word, regexes, builder, nfas, ends))
+                    continue;
+                dropped.add(rules.get(k));
+                auto.keywords.computeIfAbsent(rules.get(j).actions, Keywords::new).rules.put(word, rules.get(k).actions);
+                break;
+            }
+        }
+        return dropped;
+    }
+
+    static boolean matches(int rule, String word, ArrayList<Regex> regexes, NfaBuilder builder, Automat[] nfas, StatePair[] ends) {
+        if (nfas[rule] == null) {
+            nfas[rule] = new Automat();
+            ends[rule] = builder.build(regexes.get(rule), nfas[rule]);
+        }
+        return accepts(nfas[rule], ends[rule], word);
+    }
+
+    // Thompson construction over Regex trees. A {name} reference is built once per definition
+    // and then copied into place with its states shifted, which numbers states exactly like
+    // building it again would.
+    static class NfaBuilder {
+        final Map<String, String> definitions;
+        final boolean extended;
+        final HashMap<String, Automat> fragments = new HashMap<>();
+        final HashMap<String, StatePair> fragmentEnds = new HashMap<>();
+        final HashSet<String> building = new HashSet<>();
+
+        NfaBuilder(Map<String, String> definitions, boolean extended) {
+            this.definitions = definitions;
+            this.extended = extended;
+        }
+
+        StatePair build(Regex regex, Automat auto) {
+            int leftState = auto.numStates++;
+            int rightState = auto.numStates++;
+
+            if (regex.alternatives != null) {
+                for (Regex alternative : regex.alternatives) {
+                    StatePair temp = build(alternative, auto);
+                    auto.transitions.add(new Transition(leftState, temp.left, '$'));
+                    auto.transitions.add(new Transition(temp.right, rightState, '$'));
+                }
+                return new StatePair(leftState, rightState);
+            }
+
             int lastState = leftState;
-            for(int i = 0; i < regex.length(); i++) {
+            for (Atom atom : regex.atoms) {
                 int a, b;
-                if(prefix) {
-                    //1
-                    prefix = false;
-                    char transChar;
-                    if(regex.charAt(i) == 't')
-                        transChar = '\t';
-                    else if(regex.charAt(i) == 'n')
-                        transChar = '\n';
-                    else if(regex.charAt(i) == '_')
-                        transChar = ' ';
-                    else
-                        transChar = regex.charAt(i);
-                    a = newState(auto);
-                    b = newState(auto);
-                    auto.transitions.add(new Transition(a, b, transChar));
+                if (atom.group != null || atom.ref != null) {
+                    StatePair temp = atom.group != null ? build(atom.group, auto) : instantiate(atom.ref, auto);
+                    a = temp.left;
+                    b = temp.right;
+                } else if (atom.ranges != null) {
+                    // one range edge per class range, never an alternation of characters
+                    a = auto.numStates++;
+                    b = auto.numStates++;
+                    for (int k = 0; k < atom.ranges.length; k += 2)
+                        auto.transitions.add(new Transition(a, b, atom.ranges[k], atom.ranges[k + 1]));
                 } else {
-                    //2
-                    if(regex.charAt(i) == '\\') {
-                        prefix = true;
-                        continue;
-                    }
-                    if(regex.charAt(i) != '(') {
-                        //2a
-                        a = newState(auto);
-                        b = newState(auto);
-                        if(regex.charAt(i) == '$')
-                            auto.transitions.add(new Transition(a, b, '$'));
-                        else
-                            auto.transitions.add(new Transition(a, b, regex.charAt(i)));
-                    } else {
-                        //2b
-                        int j = findMatchingParen(regex, i);
-                        StatePair temp = exchange(regex.substring(i + 1, j), auto);
-                        a = temp.left;
-                        b = temp.right;
-                        i = j;
-                    }
+                    a = auto.numStates++;
+                    b = auto.numStates++;
+                    auto.transitions.add(new Transition(a, b, atom.symbol));
                 }
 
-                if(i + 1 < regex.length() && regex.charAt(i+1) == '*') {
+                if (atom.repeat != 0) {
                     int x = a;
                     int y = b;
-                    a = newState(auto);
-                    b = newState(auto);
+                    a = auto.numStates++;
+                    b = auto.numStates++;
                     auto.transitions.add(new Transition(a, x, '$'));
                     auto.transitions.add(new Transition(y, b, '$'));
-                    auto.transitions.add(new Transition(a, b, '$'));
-                    auto.transitions.add(new Transition(y, x, '$'));
-                    i++;
+                    if (atom.repeat != '+')
+                        auto.transitions.add(new Transition(a, b, '$'));
+                    if (atom.repeat != '?')
+                        auto.transitions.add(new Transition(y, x, '$'));
                 }
 
                 auto.transitions.add(new Transition(lastState, a, '$'));
                 lastState = b;
             }
             auto.transitions.add(new Transition(lastState, rightState, '$'));
+            return new StatePair(leftState, rightState);
         }
-        return new StatePair(leftState, rightState);
 
+        StatePair instantiate(String name, Automat auto) {
+            Automat fragment = fragments.get(name);
+            if (fragment == null) {
+                String definition = definitions.get(name);
+                if (definition == null)
+                    throw new IllegalArgumentException("Undefined regular definition {" + name + "}");
+                if (!building.add(name))
+                    throw new IllegalArgumentException("Regular definition {" + name + "} refers to itself");
+                fragment = new Automat();
+                fragment.numStates = 0;
+                fragmentEnds.put(name, build(new RegexParser(definition, extended).parse(), fragment));
+                building.remove(name);
+                fragments.put(name, fragment);
+            }
+
+            int base = auto.numStates;
+            for (Transition t : fragment.transitions)
+                auto.transitions.add(new Transition(t.from + base, t.to + base, t.symbol, t.last));
+            auto.numStates += fragment.numStates;
+            StatePair ends = fragmentEnds.get(name);
+            return new StatePair(ends.left + base, ends.right + base);
+        }
     }
 
-    public static ArrayList<Automat> sendAutomats() throws IOException {
+    // %L token types in spec order, LA numbers token types by this list
+    static ArrayList<String> tokens = new ArrayList<>();
+
+    public static ArrayList<Automat> sendAutomats(boolean keepKeywords) throws IOException {
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 
         LinkedHashMap<String, String> definitions = new LinkedHashMap<>();
         ArrayList<String> states = new ArrayList<>();
-        ArrayList<String> tokens = new ArrayList<>();
         ArrayList<Rule> rules = new ArrayList<>();
 
         String line;
 
         Rule currentRule;
+        boolean extended = false;
         while ((line = br.readLine()) != null) {
             line = line.trim();
             if (line.isEmpty()) continue;
@@ -229,6 +941,12 @@ public class GLA {
                 continue;
             }
 
+            // [...] classes, '+' and '?' are operators from here on
+            if (line.equals("%Extended")) {
+                extended = true;
+                continue;
+            }
+
             // 3 Tokens
             if (line.startsWith("%L")) {
                 String[] parts = line.split("\\s+");
@@ -250,63 +968,751 @@ public class GLA {
             }
         }
 
-        boolean changed;
-
-        do {
-            changed = false;
-            for (Map.Entry<String, String> entry : definitions.entrySet()) {
-                String value = entry.getValue();
-                if (!containsBracket(value)) continue;
-
-                int start = findFirstOpenBracket(value);
-                int end = findFirstClosedBracket(value);
-                String newRegex = value.substring(start + 1, end);
-                String insert = definitions.get(newRegex);
-
-                String entire = value.substring(0, start) + "(" + insert + ")" + value.substring(end + 1);
-                entry.setValue(entire);
-                changed = true;
-            }
-        } while (changed);
-
-        for(Rule r: rules) {
-            while(containsBracket(r.regex)) {
-                int start = findFirstOpenBracket(r.regex);
-                int end = findFirstClosedBracket(r.regex);
-                if(end == -1) break;
-                if(start == -1) break;
-                String newRegex = r.regex.substring(start + 1, end);
-                String insert = definitions.get(newRegex);
-                r.regex = r.regex.substring(0, start) + "(" + insert + ")" + r.regex.substring(end + 1);
-            }
-        }
+        NfaBuilder builder = new NfaBuilder(definitions, extended);
         ArrayList<Automat> tables = new ArrayList<>();
         for(String s: states) {
             Automat auto = new Automat();
             auto.name = s;
 
+            ArrayList<Rule> stateRules = new ArrayList<>();
+            ArrayList<Regex> regexes = new ArrayList<>();
             for (Rule r : rules)
                 if (r.name.equals(s)) {
-                    StatePair pair = new GLA().exchange(r.regex, auto);
-                    auto.transitions.add(new Transition(0, pair.left, '$'));
-                    auto.acceptable.put(pair.right, r.actions);
+                    stateRules.add(r);
+                    regexes.add(new RegexParser(r.regex, extended).parse());
                 }
+            HashSet<Rule> dropped = keepKeywords ? new HashSet<>() : findKeywords(stateRules, regexes, builder, auto);
+            for (Keywords keywords : auto.keywords.values())
+                keywords.build();
+
+            for (int i = 0; i < stateRules.size(); i++) {
+                if (dropped.contains(stateRules.get(i)))
+                    continue;
+                StatePair pair = builder.build(regexes.get(i), auto);
+                auto.transitions.add(new Transition(0, pair.left, '$'));
+                auto.acceptable.put(pair.right, stateRules.get(i).actions);
+            }
             tables.add(auto);
         }
         return tables;
     }
 
 
+    // Character equivalence classes over all deterministic automata: two characters share a
+    // class when every state of every automaton moves to the same target on both of them.
+    // Class 0 holds the characters without any edge. The result is indexed by char.
+    public static char[] characterClasses(ArrayList<Automat> tables) {
+        int total = 0;
+        int[] offset = new int[tables.size()];
+        for (int i = 0; i < tables.size(); i++) {
+            offset[i] = total;
+            total += tables.get(i).numStates;
+        }
+
+        // characters of one elementary interval always share a class
+        ArrayList<Transition> all = new ArrayList<>();
+        for (Automat a : tables)
+            all.addAll(a.transitions);
+        int[] cuts = cuts(all);
+        int[][] signatures = new int[cuts.length][];
+        for (int i = 0; i < tables.size(); i++)
+            for (Transition t : tables.get(i).transitions)
+                for (int k = Arrays.binarySearch(cuts, t.symbol); cuts[k] <= t.last; k++) {
+                    if (signatures[k] == null) {
+                        signatures[k] = new int[total];
+                        Arrays.fill(signatures[k], -1);
+                    }
+                    signatures[k][offset[i] + t.from] = t.to;
+                }
+
+        char[] classOf = new char[Character.MAX_VALUE + 1];
+        HashMap<String, Integer> classes = new HashMap<>();
+        for (int k = 0; k < cuts.length; k++) {
+            if (signatures[k] == null) continue;
+            String key = Arrays.toString(signatures[k]);
+            Integer c = classes.get(key);
+            if (c == null) {
+                c = classes.size() + 1;
+                classes.put(key, c);
+            }
+            Arrays.fill(classOf, cuts[k], cuts[k + 1], (char) c.intValue());
+        }
+        return classOf;
+    }
+
+    public static int classCount(char[] classOf) {
+        int max = 0;
+        for (char c : classOf)
+            max = Math.max(max, c);
+        return max + 1;
+    }
+
+    // Characters on which a DFA state loops back to itself, as inclusive ranges lo0, hi0, lo1, hi1...
+    // LA skips whole runs of them at once. Null when the state has no self-loop or too many ranges.
+    public static char[] selfLoopRanges(Automat a, int state) {
+        ArrayList<Transition> loops = new ArrayList<>();
+        for (Transition t : a.transitions)
+            if (t.from == state && t.to == state)
+                loops.add(t);
+        if (loops.isEmpty())
+            return null;
+        loops.sort((x, y) -> Character.compare(x.symbol, y.symbol));
+
+        ArrayList<Character> ranges = new ArrayList<>();
+        for (Transition t : mergeRanges(loops)) {
+            ranges.add(t.symbol);
+            ranges.add(t.last);
+        }
+        if (ranges.size() > 2 * MAX_RUN_RANGES)
+            return null;
+        char[] result = new char[ranges.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ranges.get(i);
+        return result;
+    }
+
+    public static final int MAX_RUN_RANGES = 8;
+
+    // Row-major transition table keyed by character class, -1 where there is no edge
+    public static int[] denseTable(Automat a, char[] classOf, int numClasses) {
+        int[] table = new int[a.numStates * numClasses];
+        Arrays.fill(table, -1);
+        for (Transition t : a.transitions)
+            for (int c = t.symbol; c <= t.last; c++)
+                table[t.from * numClasses + classOf[c]] = t.to;
+        return table;
+    }
+
+    // Binary table layout read by LA.loadFromBinary, all values big-endian:
+    //   int magic, int version
+    //   int stringCount, per string: int byteLength, UTF-8 bytes
+    //   int actionListCount, per list: int size, string indices
+    //   int tokenCount, per %L token type: string index
+    //   int encoding, 0 for tables over chars, 1 for tables over UTF-8 bytes (--utf8)
+    //   int numClasses, int rangeCount, per range of chars in one class: int lo, int hi, int class
+    //   int automatonCount, per automaton:
+    //     int name (string index), int numStates,
+    //     int[numStates * numClasses] transition table, -1 for no edge,
+    //     int[numStates] accepting action list or -1,
+    //     int runCount, per run: int state, int rangeCount, per range: int lo, int hi,
+    //     int keywordTableCount, per table: int base action list, int n, int[n] seeds,
+    //       per slot: int word (string index), int action list
+    public static final int TABLE_MAGIC = 0x4C415442;
+    public static final int TABLE_VERSION = 7;
+
+    public static void writeBinary(ArrayList<Automat> tables, boolean utf8, File file) throws IOException {
+        LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
+        LinkedHashMap<ArrayList<String>, Integer> actionLists = new LinkedHashMap<>();
+        for (String token : tokens)
+            strings.putIfAbsent(token, strings.size());
+        for (Automat a : tables) {
+            strings.putIfAbsent(a.name, strings.size());
+            for (ArrayList<String> actions : a.acceptable.values()) {
+                actionLists.putIfAbsent(actions, actionLists.size());
+                for (String action : actions)
+                    strings.putIfAbsent(action, strings.size());
+            }
+            for (Keywords k : a.keywords.values())
+                for (int i = 0; i < k.words.length; i++) {
+                    strings.putIfAbsent(k.words[i], strings.size());
+                    actionLists.putIfAbsent(k.actions.get(i), actionLists.size());
+                    for (String action : k.actions.get(i))
+                        strings.putIfAbsent(action, strings.size());
+                }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(TABLE_MAGIC);
+            out.writeInt(TABLE_VERSION);
+
+            out.writeInt(strings.size());
+            for (String str : strings.keySet()) {
+                byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(actionLists.size());
+            for (ArrayList<String> actions : actionLists.keySet()) {
+                out.writeInt(actions.size());
+                for (String action : actions)
+                    out.writeInt(strings.get(action));
+            }
+
+            out.writeInt(tokens.size());
+            for (String token : tokens)
+                out.writeInt(strings.get(token));
+            out.writeInt(utf8 ? 1 : 0);
+
+            char[] classOf = characterClasses(tables);
+            int numClasses = classCount(classOf);
+            ArrayList<int[]> classRanges = new ArrayList<>();
+            for (int ch = 0; ch < classOf.length; ch++) {
+                if (classOf[ch] == 0) continue;
+                int end = ch;
+                while (end + 1 < classOf.length && classOf[end + 1] == classOf[ch])
+                    end++;
+                classRanges.add(new int[]{ch, end, classOf[ch]});
+                ch = end;
+            }
+            out.writeInt(numClasses);
+            out.writeInt(classRanges.size());
+            for (int[] range : classRanges)
+                for (int value : range)
+                    out.writeInt(value);
+
+            out.writeInt(tables.size());
+            for (Automat a : tables) {
+                out.writeInt(strings.get(a.name));
+                out.writeInt(a.numStates);
+                for (int target : denseTable(a, classOf, numClasses))
+                    out.writeInt(target);
+
+                for (int i = 0; i < a.numStates; i++) {
+                    ArrayList<String> actions = a.acceptable.get(i);
+                    out.writeInt(actions == null ? -1 : actionLists.get(actions));
+                }
+
+                ArrayList<char[]> runs = new ArrayList<>();
+                for (int state = 0; state < a.numStates; state++)
+                    runs.add(selfLoopRanges(a, state));
+                out.writeInt((int) runs.stream().filter(Objects::nonNull).count());
+                for (int state = 0; state < a.numStates; state++) {
+                    char[] ranges = runs.get(state);
+                    if (ranges == null) continue;
+                    out.writeInt(state);
+                    out.writeInt(ranges.length / 2);
+                    for (char c : ranges)
+                        out.writeInt(c);
+                }
+
+                out.writeInt(a.keywords.size());
+                for (Keywords k : a.keywords.values()) {
+                    out.writeInt(actionLists.get(k.base));
+                    out.writeInt(k.words.length);
+                    for (int seed : k.seeds)
+                        out.writeInt(seed);
+                    for (int i = 0; i < k.words.length; i++) {
+                        out.writeInt(strings.get(k.words[i]));
+                        out.writeInt(actionLists.get(k.actions.get(i)));
+                    }
+                }
+            }
+        }
+    }
+
+    // --java writes a standalone lexer class with the tables inlined as string constants and the
+    // actions compiled into a switch, it prints exactly what LA prints for the same tables
+    public static final String LEXER_CLASS = "GeneratedLexer";
+
+    public static void writeJava(ArrayList<Automat> tables, char[] classOf, int numClasses, File file) throws IOException {
+        ArrayList<String> types = new ArrayList<>(tokens);
+        ArrayList<String> stateNames = new ArrayList<>();
+        for (Automat a : tables)
+            stateNames.add(a.name);
+
+        LinkedHashMap<ArrayList<String>, Integer> actionLists = new LinkedHashMap<>();
+        for (Automat a : tables)
+            for (ArrayList<String> actions : a.acceptable.values())
+                actionLists.putIfAbsent(actions, actionLists.size());
+        for (Automat a : tables)
+            for (Keywords k : a.keywords.values())
+                for (ArrayList<String> actions : k.actions)
+                    actionLists.putIfAbsent(actions, actionLists.size());
+
+        StringBuilder cases = new StringBuilder();
+        StringBuilder znak = new StringBuilder();
+        for (Map.Entry<ArrayList<String>, Integer> entry : actionLists.entrySet()) {
+            ArrayList<String> actions = entry.getKey();
+            String type = actions.get(0).trim();
+            cases.append("            case ").append(entry.getValue()).append(": // ")
+                    .append(String.join(", ", actions)).append("\n");
+
+            int pushBack = 0;
+            boolean reread = false;
+            String enter = null;
+            for (int i = 1; i < actions.size(); i++) {
+                String action = actions.get(i);
+                if (action.startsWith("VRATI_SE")) {
+                    int n = Integer.parseInt(action.substring("VRATI_SE ".length()));
+                    if (n == 0) reread = true;
+                    else pushBack += n;
+                } else if (action.startsWith("UDJI_U_STANJE")) {
+                    enter = action.substring("UDJI_U_STANJE ".length());
+                }
+            }
+
+            if (pushBack > 0)
+                cases.append("                last -= ").append(pushBack).append(";\n");
+            if (!type.equals("-")) {
+                if (!types.contains(type))
+                    types.add(type);
+                cases.append("                token(").append(types.indexOf(type)).append(");\n");
+            }
+            if (enter != null)
+                cases.append("                lexerState = ").append(stateNames.indexOf(enter)).append(";\n");
+            cases.append("                start = ").append(reread ? "last - 1" : "last").append(";\n");
+            cases.append("                break;\n");
+
+            if (type.equals("ZNAK"))
+                znak.append("            case ").append(entry.getValue()).append(":\n");
+        }
+        if (znak.length() > 0)
+            znak.append("                return last - start == 2 && input.charAt(start) == '\\'' && input.charAt(start + 1) == '\\'';\n");
+
+        StringBuilder keywords = new StringBuilder();
+        for (int state = 0; state < tables.size(); state++)
+            for (Keywords k : tables.get(state).keywords.values()) {
+                int[] actions = new int[k.words.length];
+                for (int i = 0; i < actions.length; i++)
+                    actions[i] = actionLists.get(k.actions.get(i));
+                keywords.append("        new Keywords(").append(state).append(", ").append(actionLists.get(k.base))
+                        .append(",\n            new String[]{\"").append(String.join("\", \"", k.words)).append("\"},\n")
+                        .append("            new int[]{").append(javaInts(k.seeds)).append("},\n")
+                        .append("            new int[]{").append(javaInts(actions)).append("}),\n");
+            }
+
+        StringBuilder delta = new StringBuilder();
+        StringBuilder accept = new StringBuilder();
+        for (Automat a : tables) {
+            if (a.numStates >= Character.MAX_VALUE)
+                throw new IOException(a.name + " has too many states for " + LEXER_CLASS);
+            int[] table = denseTable(a, classOf, numClasses);
+            for (int i = 0; i < table.length; i++)
+                table[i]++;
+            int[] actions = new int[a.numStates];
+            for (int s = 0; s < a.numStates; s++) {
+                ArrayList<String> list = a.acceptable.get(s);
+                actions[s] = list == null ? 0 : actionLists.get(list) + 1;
+            }
+            delta.append("        unpack(").append(javaStrings(table)).append("), // ").append(a.name).append("\n");
+            accept.append("        unpack(").append(javaStrings(actions)).append("), // ").append(a.name).append("\n");
+        }
+
+        // lo, hi, class per run of chars in one class
+        ArrayList<Integer> runs = new ArrayList<>();
+        for (int ch = 0; ch < classOf.length; ch++) {
+            if (classOf[ch] == 0) continue;
+            int end = ch;
+            while (end + 1 < classOf.length && classOf[end + 1] == classOf[ch])
+                end++;
+            runs.addAll(List.of(ch, end, (int) classOf[ch]));
+            ch = end;
+        }
+        int[] classRuns = runs.stream().mapToInt(Integer::intValue).toArray();
+
+        // the memo keys a lexer state by 8 bits and a DFA state by 24, like LA.memoFits
+        boolean memo = tables.size() <= 1 << 8;
+        for (Automat a : tables)
+            memo &= a.numStates <= 1 << 24;
+        if (!memo)
+            System.err.println("The tables are too large for the dead-end memo of " + LEXER_CLASS
+                    + ", scans after errors may repeat");
+
+        StringBuilder typeList = new StringBuilder();
+        for (String type : types)
+            typeList.append(typeList.length() == 0 ? "" : ", ").append('"').append(type).append('"');
+
+        HashMap<String, String> values = new HashMap<>();
+        values.put("CLASS", LEXER_CLASS);
+        values.put("TYPES", typeList.toString());
+        values.put("NUM_CLASSES", String.valueOf(numClasses));
+        values.put("CLASS_MAP", javaStrings(classRuns));
+        values.put("DELTA", delta.toString());
+        values.put("ACCEPT", accept.toString());
+        values.put("ZNAK", znak.toString());
+        values.put("KEYWORDS", keywords.toString());
+        values.put("CASES", cases.toString());
+        values.put("MEMO", String.valueOf(memo));
+
+        // one pass, so table data is never scanned for placeholders
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("\\$([A-Z_]+)").matcher(JAVA_TEMPLATE);
+        StringBuilder source = new StringBuilder();
+        while (m.find())
+            m.appendReplacement(source, java.util.regex.Matcher.quoteReplacement(values.get(m.group(1))));
+        m.appendTail(source);
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write(source.toString());
+        }
+    }
+
+    static String javaInts(int[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int v : values)
+            sb.append(sb.length() == 0 ? "" : ", ").append(v);
+        return sb.toString();
+    }
+
+    // String literals holding one value per char, split so no constant exceeds the class file limit
+    static String javaStrings(int[] values) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0 && i % 8000 == 0)
+                sb.append("\",\n            \"");
+            int v = values[i];
+            if (v >= ' ' && v < 127 && v != '"' && v != '\\')
+                sb.append((char) v);
+            else if (v < 256)
+                sb.append(String.format("\\%03o", v));
+            else
+                sb.append(String.format("\\u%04x", v));
+        }
+        return sb.append('"').toString();
+    }
+
+    static final String JAVA_TEMPLATE = """
+            // Generated by GLA --java, do not edit.
+            // Lexer with the tables of automats.txt built in, prints the same tokens as LA.
+            import java.io.BufferedReader;
+            import java.io.BufferedWriter;
+            import java.io.IOException;
+            import java.io.InputStreamReader;
+            import java.io.OutputStreamWriter;
+            import java.io.PrintWriter;
+            import java.util.Arrays;
+            import java.util.HashSet;
+
+            public class $CLASS {
+                static final String[] TYPES = {$TYPES};
+                static final int NUM_CLASSES = $NUM_CLASSES;
+                static final char[] CLASS_MAP = classMap($CLASS_MAP);
+                // row-major per lexer state, -1 where there is no edge
+                static final int[][] DELTA = {
+            $DELTA    };
+                // action of every DFA state, -1 if it does not accept
+                static final int[][] ACCEPT = {
+            $ACCEPT    };
+                // literal rules left out of the DFA, see GLA.Keywords
+                static final Keywords[] KEYWORDS = {
+            $KEYWORDS    };
+
+                static String input;
+                static int start = 0;
+                static int last = 0;
+                static int end = 0;
+                static int lexerState = 0;
+                static PrintWriter out;
+
+                // line starts, filled as the scan first passes each '\\n'
+                static int[] lineStarts = new int[256];
+                static int lineCount = 1;
+                static int lineCursor = 0;
+
+                // failed (position, lexer state, DFA state) triples, see LA.Lexer.nextToken; false
+                // when the tables are too large for their keys
+                static final boolean MEMO = $MEMO;
+                static HashSet<Long> failed = new HashSet<>();
+                static int pruneAt = 4096;
+                static long[] trail = new long[64];
+                static int trailSize = 0;
+
+                public static void main(String[] args) throws IOException {
+                    BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+                    StringBuilder sb = new StringBuilder();
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        sb.append(line);
+                        sb.append("\\n");
+                    }
+                    lex(sb.toString(), new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16)));
+                }
+
+                // Lexes text from fresh scan state and flushes the tokens to writer
+                public static void lex(String text, PrintWriter writer) {
+                    input = text;
+                    out = writer;
+                    start = 0;
+                    last = 0;
+                    end = 0;
+                    lexerState = 0;
+                    lineCount = 1;
+                    lineCursor = 0;
+                    failed.clear();
+                    pruneAt = 4096;
+                    trailSize = 0;
+                    analyze();
+                    out.flush();
+                }
+
+                static void analyze() {
+                    int[] delta = DELTA[0];
+                    int[] accept = ACCEPT[0];
+                    int state = 0;
+                    int action = -1;
+                    int scanned = 0;
+                    int length = input.length();
+
+                    while (end < length) {
+                        char a = input.charAt(end);
+                        if (end >= scanned) {
+                            scanned = end + 1;
+                            if (a == '\\n')
+                                addLine(end + 1);
+                        }
+
+                        state = delta[state * NUM_CLASSES + CLASS_MAP[a]];
+                        end++;
+
+                        boolean alive = state != -1;
+                        long triple = ((long) end << 32) | ((long) lexerState << 24) | state;
+                        if (alive && MEMO && !failed.isEmpty() && failed.contains(triple))
+                            alive = false;
+
+                        if (alive && accept[state] != -1) {
+                            action = accept[state];
+                            last = end;
+                            trailSize = 0;
+                        } else if (alive && MEMO) {
+                            if (trailSize == trail.length)
+                                trail = Arrays.copyOf(trail, trailSize * 2);
+                            trail[trailSize++] = triple;
+                        }
+
+                        if (!alive) {
+                            for (int i = 0; i < trailSize; i++)
+                                failed.add(trail[i]);
+                            trailSize = 0;
+
+                            if (action != -1)
+                                action = keyword(action);
+                            if (action == -1 || emptyZnak(action)) {
+                                error(start);
+                                start++;
+                            } else {
+                                emit(action);
+                            }
+                            end = start;
+                            action = -1;
+                            delta = DELTA[lexerState];
+                            accept = ACCEPT[lexerState];
+                            state = 0;
+
+                            if (failed.size() > pruneAt) {
+                                failed.removeIf(t -> (t >>> 32) <= start);
+                                pruneAt = Math.max(4096, 2 * failed.size());
+                            }
+                        }
+                    }
+                }
+
+                // the action of the keyword the lexeme is, action if it is none
+                static int keyword(int action) {
+                    for (Keywords k : KEYWORDS)
+                        if (k.lexerState == lexerState && k.base == action)
+                            return k.lookup(action);
+                    return action;
+                }
+
+                static void emit(int action) {
+                    switch (action) {
+            $CASES        }
+                }
+
+                // ZNAK '' is not a character constant
+                static boolean emptyZnak(int action) {
+                    switch (action) {
+            $ZNAK            default:
+                            return false;
+                    }
+                }
+
+                static void token(int type) {
+                    if (last <= start)
+                        return;
+                    int line = line(start);
+                    String text = input.substring(start, last);
+                    if (line(last - 1) != line)
+                        text = text.replace("\\n", "");
+                    out.println(TYPES[type] + " " + line + " " + text.trim());
+                }
+
+                static void error(int position) {
+                    if (position < input.length())
+                        System.err.println("Error: unrecognized symbol '" + input.charAt(position) + "' at position " + position);
+                    else
+                        System.err.println("Lexical error at end of input.");
+                }
+
+                static void addLine(int offset) {
+                    if (lineCount == lineStarts.length)
+                        lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                    lineStarts[lineCount++] = offset;
+                }
+
+                static int line(int offset) {
+                    while (lineCursor + 1 < lineCount && lineStarts[lineCursor + 1] <= offset)
+                        lineCursor++;
+                    while (lineStarts[lineCursor] > offset)
+                        lineCursor--;
+                    return lineCursor + 1;
+                }
+
+                // minimal perfect hash of the words matched by the base action in one lexer state
+                static class Keywords {
+                    final int lexerState;
+                    final int base;
+                    final String[] words;
+                    final int[] seeds;
+                    final int[] actions;
+
+                    Keywords(int lexerState, int base, String[] words, int[] seeds, int[] actions) {
+                        this.lexerState = lexerState;
+                        this.base = base;
+                        this.words = words;
+                        this.seeds = seeds;
+                        this.actions = actions;
+                    }
+
+                    // a single '$' before or after a letter is skipped, as in LA.Keywords.lookup
+                    int lookup(int action) {
+                        int n = words.length;
+                        int slot = hash(seeds[hash(0) % n]) % n;
+                        String word = words[slot];
+                        int i = 0;
+                        for (int k = start; k < last; k++) {
+                            char c = input.charAt(k);
+                            if (c == '$' && (k == start || input.charAt(k - 1) != '$'))
+                                continue;
+                            if (i == word.length() || c != word.charAt(i++))
+                                return action;
+                        }
+                        return i == word.length() ? actions[slot] : action;
+                    }
+
+                    static int hash(int seed) {
+                        int h = 0x811C9DC5 ^ seed * 0x9E3779B9;
+                        for (int i = start; i < last; i++)
+                            if (input.charAt(i) != '$')
+                                h = (h ^ input.charAt(i)) * 0x01000193;
+                        h ^= h >>> 16;
+                        h *= 0x85EBCA6B;
+                        h ^= h >>> 13;
+                        return h & Integer.MAX_VALUE;
+                    }
+                }
+
+                // tables are stored one value + 1 per char so -1 fits
+                static int[] unpack(String... chunks) {
+                    String values = String.join("", chunks);
+                    int[] result = new int[values.length()];
+                    for (int i = 0; i < result.length; i++)
+                        result[i] = values.charAt(i) - 1;
+                    return result;
+                }
+
+                static char[] classMap(String... chunks) {
+                    String runs = String.join("", chunks);
+                    char[] map = new char[Character.MAX_VALUE + 1];
+                    for (int i = 0; i < runs.length(); i += 3)
+                        Arrays.fill(map, runs.charAt(i), runs.charAt(i + 1) + 1, runs.charAt(i + 2));
+                    return map;
+                }
+            }
+            """;
+
     public static void main(String[] args) {
+        // --nfa keeps the raw Thompson automata instead of determinizing them
+        boolean keepNfa = Arrays.asList(args).contains("--nfa");
+        // --binary also writes automats.bin, which LA maps instead of parsing automats.txt
+        boolean binary = Arrays.asList(args).contains("--binary");
+        // --java also writes GeneratedLexer.java, a lexer with the tables compiled in
+        boolean java = Arrays.asList(args).contains("--java");
+        // --keep-keywords leaves literal rules such as keywords in the automaton instead of
+        // moving them to a perfect hash looked up after the identifier rule matches
+        boolean keepKeywords = Arrays.asList(args).contains("--keep-keywords");
+        // --utf8 writes deterministic tables over the UTF-8 bytes of the input instead of its
+        // chars, for LA to scan raw bytes
+        boolean utf8 = Arrays.asList(args).contains("--utf8");
+        TableCache cache = TableCache.fromArgs(args, "gla");
 
         try {
-            ArrayList<Automat> tables = sendAutomats();
+            File binaryFile = new File("./analizator/automats.bin");
+            if (binary && keepNfa)
+                System.err.println("automats.bin holds deterministic tables only, ignoring --binary");
+            if (!(binary && !keepNfa) && binaryFile.exists() && !binaryFile.delete())
+                System.err.println("Could not remove stale " + binaryFile);
+            if (utf8 && keepNfa) {
+                System.err.println("UTF-8 tables are deterministic only, ignoring --utf8");
+                utf8 = false;
+            }
+            if (utf8 && java) {
+                System.err.println(LEXER_CLASS + " lexes chars only, ignoring --java");
+                java = false;
+            }
+
+            // the spec is hashed with its lines trimmed, which is all the parser looks at
+            byte[] spec = System.in.readAllBytes();
+            String key = null;
+            if (cache != null) {
+                StringBuilder normalized = new StringBuilder();
+                for (String line : new String(spec, StandardCharsets.UTF_8).split("\\R"))
+                    normalized.append(line.trim()).append('\n');
+                key = TableCache.key(TableCache.generatorVersion(GLA.class),
+                        "nfa=" + keepNfa, "binary=" + binary, "java=" + java, "keywords=" + !keepKeywords, "utf8=" + utf8, normalized.toString());
+                if (cache.restore(key, new File("./analizator"))) {
+                    System.err.println("Spec unchanged, tables reused from " + new File(cache.dir, key));
+                    return;
+                }
+            }
+            System.setIn(new ByteArrayInputStream(spec));
+
+            ArrayList<Automat> tables = sendAutomats(keepKeywords);
+            if (!keepNfa)
+                for (int i = 0; i < tables.size(); i++) {
+                    Automat dfa = determinize(tables.get(i));
+                    Automat min = minimize(dfa);
+                    System.err.println(min.name + ": " + dfa.numStates + " -> " + min.numStates + " states");
+                    if (utf8) {
+                        Automat bytes = minimize(utf8(min));
+                        System.err.println(min.name + ": " + bytes.numStates + " states over UTF-8 bytes");
+                        min = bytes;
+                    }
+                    min.keywords = tables.get(i).keywords;
+                    tables.set(i, min);
+                }
 
             BufferedWriter writer = new BufferedWriter(new FileWriter("./analizator/automats.txt"));
+            writer.write("Tokens: " + String.join(" ", tokens));
+            writer.newLine();
+            if (utf8) {
+                writer.write("Encoding: UTF-8");
+                writer.newLine();
+            }
+
+            // deterministic tables are written per character class, the class of every
+            // character that has an edge is listed up front, runs of three or more
+            // consecutive characters as lo-hi
+            char[] classOf = keepNfa ? null : characterClasses(tables);
+            int numClasses = keepNfa ? 0 : classCount(classOf);
+            if (!keepNfa) {
+                writer.write("Classes: " + numClasses);
+                writer.newLine();
+                for (int c = 1; c < numClasses; c++) {
+                    writer.write(c + ":");
+                    for (int ch = 0; ch < classOf.length; ch++) {
+                        if (classOf[ch] != c) continue;
+                        int end = ch;
+                        while (end + 1 < classOf.length && classOf[end + 1] == c)
+                            end++;
+                        if (end - ch >= 2) {
+                            writer.write(" " + ch + "-" + end);
+                            ch = end;
+                        } else
+                            writer.write(" " + ch);
+                    }
+                    writer.newLine();
+                }
+                writer.write("-----");
+                writer.newLine();
+            }
 
             for (Automat a : tables) {
                 writer.write("Automat: " + a.name);
                 writer.newLine();
+                if (a.deterministic) {
+                    writer.write("Deterministic");
+                    writer.newLine();
+                }
                 writer.write("Acceptable: ");
                 writer.newLine();
                 for(Map.Entry<Integer, ArrayList<String>> entry : a.acceptable.entrySet()) {
@@ -318,6 +1724,54 @@ public class GLA {
                 }
                 writer.newLine();
 
+                // one block per rule that stands in for literals, words in slot order
+                for (Keywords k : a.keywords.values()) {
+                    writer.write("Keywords: ");
+                    for (String s : k.base)
+                        writer.write(s + ", ");
+                    writer.newLine();
+                    writer.write("Seeds:");
+                    for (int seed : k.seeds)
+                        writer.write(" " + seed);
+                    writer.newLine();
+                    for (int i = 0; i < k.words.length; i++) {
+                        writer.write(k.words[i] + ": ");
+                        for (String s : k.actions.get(i))
+                            writer.write(s + ", ");
+                        writer.newLine();
+                    }
+                    writer.write("-----");
+                    writer.newLine();
+                }
+
+                if (a.deterministic) {
+                    writer.write("Runs:");
+                    writer.newLine();
+                    for (int state = 0; state < a.numStates; state++) {
+                        char[] ranges = selfLoopRanges(a, state);
+                        if (ranges == null) continue;
+                        writer.write(state + ":");
+                        for (int i = 0; i < ranges.length; i += 2)
+                            writer.write(" " + (int) ranges[i] + "-" + (int) ranges[i + 1]);
+                        writer.newLine();
+                    }
+                    writer.write("-----");
+                    writer.newLine();
+
+                    writer.write("Table:");
+                    writer.newLine();
+                    int[] table = denseTable(a, classOf, numClasses);
+                    for (int state = 0; state < a.numStates; state++) {
+                        writer.write(state + ":");
+                        for (int c = 0; c < numClasses; c++)
+                            writer.write(" " + table[state * numClasses + c]);
+                        writer.newLine();
+                    }
+                    writer.write("-----");
+                    writer.newLine();
+                    continue;
+                }
+
                 writer.write("Transitions:");
                 writer.newLine();
 
@@ -338,6 +1792,8 @@ public class GLA {
                             break;
                     }
 
+                    if (t.last != t.symbol)
+                        symbolStr = "[" + (int) t.symbol + "-" + (int) t.last + "]";
                     writer.write(t.from + " --" + symbolStr + "--> " + t.to);
                     writer.newLine();
                 }
@@ -347,6 +1803,23 @@ public class GLA {
 
             writer.close();
 
+            if (binary && !keepNfa)
+                writeBinary(tables, utf8, binaryFile);
+
+            if (java && keepNfa)
+                System.err.println(LEXER_CLASS + " is generated from deterministic tables only, ignoring --java");
+            if (java && !keepNfa)
+                writeJava(tables, classOf, numClasses, new File("./analizator/" + LEXER_CLASS + ".java"));
+
+            if (cache != null) {
+                ArrayList<String> outputs = new ArrayList<>(List.of("automats.txt"));
+                if (binary && !keepNfa)
+                    outputs.add("automats.bin");
+                if (java && !keepNfa)
+                    outputs.add(LEXER_CLASS + ".java");
+                cache.store(key, new File("./analizator"), outputs.toArray(new String[0]));
+            }
+
         } catch (IOException e) {
             e.printStackTrace();
         }
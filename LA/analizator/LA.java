@@ -1,8 +1,32 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class LA {
 
@@ -11,33 +35,237 @@ public class LA {
         public int numStates;
         public ArrayList<Transition> transitions;
         public LinkedHashMap<Integer, ArrayList<String>> acceptable;
+        public boolean deterministic;
+        int index;
+
+        // NFA adjacency indexed by state id: symbol edges of state s are
+        // edgeSymbol/edgeTarget[edgeStart[s] .. edgeStart[s + 1]), sorted by symbol, and its
+        // epsilon edges are epsTarget[epsStart[s] .. epsStart[s + 1]). Edges on a range of
+        // characters from [...] classes are rangeLo/rangeHi/rangeTarget[rangeStart[s] .. rangeStart[s + 1]).
+        int[] edgeStart;
+        char[] edgeSymbol;
+        int[] edgeTarget;
+        int[] epsStart;
+        int[] epsTarget;
+        int[] rangeStart;
+        char[] rangeLo;
+        char[] rangeHi;
+        int[] rangeTarget;
+        // DFA transitions, delta[s * numClasses + classMap[c]] is the target of s on c or -1
+        int[] delta;
+        // accept[s] is the accepting state s or null
+        State[] accept;
+        // runs[s] are the character ranges DFA state s loops on, from GLA, or null
+        char[][] runs;
+        // literal rules GLA left out of the tables
+        ArrayList<Keywords> keywords = new ArrayList<>();
 
         public Automaton() {
             numStates = 1;
             transitions = new ArrayList<>();
             acceptable = new LinkedHashMap<>();
         }
+
+        void buildTables() {
+            for (Transition t : transitions)
+                numStates = Math.max(numStates, Math.max(t.from, t.to) + 1);
+
+            ArrayList<Transition> sorted = new ArrayList<>();
+            ArrayList<Transition> epsilon = new ArrayList<>();
+            ArrayList<Transition> ranges = new ArrayList<>();
+            for (Transition t : transitions)
+                (t.last != t.symbol ? ranges : t.symbol == '$' ? epsilon : sorted).add(t);
+            sorted.sort((x, y) -> x.from != y.from ? Integer.compare(x.from, y.from) : Character.compare(x.symbol, y.symbol));
+            epsilon.sort(Comparator.comparingInt(t -> t.from));
+
+            edgeStart = new int[numStates + 1];
+            edgeSymbol = new char[sorted.size()];
+            edgeTarget = new int[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++) {
+                Transition t = sorted.get(i);
+                edgeStart[t.from + 1]++;
+                edgeSymbol[i] = t.symbol;
+                edgeTarget[i] = t.to;
+            }
+            for (int s = 0; s < numStates; s++)
+                edgeStart[s + 1] += edgeStart[s];
+
+            epsStart = new int[numStates + 1];
+            epsTarget = new int[epsilon.size()];
+            for (int i = 0; i < epsilon.size(); i++) {
+                epsStart[epsilon.get(i).from + 1]++;
+                epsTarget[i] = epsilon.get(i).to;
+            }
+            for (int s = 0; s < numStates; s++)
+                epsStart[s + 1] += epsStart[s];
+
+            ranges.sort(Comparator.comparingInt(t -> t.from));
+            rangeStart = new int[numStates + 1];
+            rangeLo = new char[ranges.size()];
+            rangeHi = new char[ranges.size()];
+            rangeTarget = new int[ranges.size()];
+            for (int i = 0; i < ranges.size(); i++) {
+                Transition t = ranges.get(i);
+                rangeStart[t.from + 1]++;
+                rangeLo[i] = t.symbol;
+                rangeHi[i] = t.last;
+                rangeTarget[i] = t.to;
+            }
+            for (int s = 0; s < numStates; s++)
+                rangeStart[s + 1] += rangeStart[s];
+
+            buildAccept();
+        }
+
+        void buildAccept() {
+            accept = new State[numStates];
+            for (Integer id : acceptable.keySet())
+                accept[id] = new State(this, id);
+        }
+
+        // index of the first symbol edge of state that is not below a
+        int firstEdge(int state, char a) {
+            int lo = edgeStart[state];
+            int hi = edgeStart[state + 1];
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (edgeSymbol[mid] < a) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
     }
 
     public static class Transition {
         public int from;
         public int to;
         public char symbol;
+        // last character of a range edge, symbol otherwise
+        public char last;
 
         public Transition(int from, int to, char symbol) {
+            this(from, to, symbol, symbol);
+        }
+
+        public Transition(int from, int to, char symbol, char last) {
             this.from = from;
             this.to = to;
             this.symbol = symbol;
+            this.last = last;
+        }
+    }
+
+    // Actions of one accepting state, compiled once at load time from strings like "VRATI_SE 2"
+    static class Action {
+        String tokenType;
+        int tokenTypeId = -1;
+        // false for "-", the token is dropped
+        boolean emits;
+        // UDJI_U_STANJE, -1 keeps the current lexer state
+        int enterState = -1;
+        String enterStateName;
+        // sum of VRATI_SE n for n > 0, characters given back to the input
+        int pushBack;
+        // VRATI_SE 0, the last character of the token is read again
+        boolean reread;
+        // NOVI_REDAK, lines themselves are counted from the consumed text
+        boolean newLine;
+        // position in stateToActions, lower wins
+        int priority;
+        // ZNAK needs the check for the empty literal ''
+        boolean znak;
+        // literals that match as this rule but take their own actions, or null
+        Keywords keywords;
+
+        Action(ArrayList<String> actions, int priority, TableLoader loader) {
+            this.priority = priority;
+            tokenType = actions.get(0);
+            emits = !tokenType.equals("-");
+            znak = tokenType.equals("ZNAK");
+            if (emits) {
+                tokenTypeId = loader.tokenTypeIds.computeIfAbsent(tokenType.trim(), k -> loader.tokenTypes.size());
+                if (tokenTypeId == loader.tokenTypes.size())
+                    loader.tokenTypes.add(tokenType.trim());
+            }
+            for (int i = 1; i < actions.size(); i++) {
+                String action = actions.get(i);
+                if (action.startsWith("VRATI_SE")) {
+                    int n = Integer.parseInt(action.substring("VRATI_SE ".length()));
+                    if (n == 0)
+                        reread = true;
+                    else
+                        pushBack += n;
+                } else if (action.startsWith("UDJI_U_STANJE")) {
+                    enterStateName = action.substring("UDJI_U_STANJE ".length());
+                    enterState = loader.automatonIndex.get(enterStateName);
+                } else if (action.equals("NOVI_REDAK")) {
+                    newLine = true;
+                }
+            }
+        }
+    }
+
+    // Literal rules that GLA moved out of an automaton because a later rule, like the identifier
+    // rule, matches them as well. Lexemes of that rule are looked up in GLA's minimal perfect
+    // hash: word w sits in slot hash(w, seeds[hash(w, 0) % n]) % n.
+    static class Keywords {
+        // actions of the rule whose lexemes are looked up
+        final ArrayList<String> base;
+        final String[] words;
+        final ArrayList<ArrayList<String>> actionLists;
+        final int[] seeds;
+        // compiled from actionLists in compileActions
+        Action[] actions;
+
+        Keywords(ArrayList<String> base, String[] words, ArrayList<ArrayList<String>> actionLists, int[] seeds) {
+            this.base = base;
+            this.words = words;
+            this.actionLists = actionLists;
+            this.seeds = seeds;
+        }
+
+        // The actions of the word in [from, to) of input, action if it is none of the words. An input
+        // '$' walks one epsilon edge, so the literal in the automaton also matched its word with a
+        // single '$' before or after any letter; the lookup skips those the same way.
+        Action lookup(Source input, int from, int to, Action action) {
+            int n = words.length;
+            int slot = hash(input, from, to, seeds[hash(input, from, to, 0) % n]) % n;
+            String word = words[slot];
+            int i = 0;
+            for (int k = from; k < to; k++) {
+                char c = input.charAt(k);
+                if (c == '$' && (k == from || input.charAt(k - 1) != '$'))
+                    continue;
+                if (i == word.length() || c != word.charAt(i++))
+                    return action;
+            }
+            return i == word.length() ? actions[slot] : action;
+        }
+
+        // the same hash as GLA.Keywords.hash, over the chars other than '$'
+        static int hash(Source input, int from, int to, int seed) {
+            int h = 0x811C9DC5 ^ seed * 0x9E3779B9;
+            for (int i = from; i < to; i++)
+                if (input.charAt(i) != '$')
+                    h = (h ^ input.charAt(i)) * 0x01000193;
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            return h & Integer.MAX_VALUE;
         }
     }
 
     static class State {
         String name;
         int id;
+        int automaton;
+        // set on the accepting states in Automaton.accept
+        Action action;
 
-        public State(String name, int id) {
-            this.name = name;
+        public State(Automaton auto, int id) {
+            this.name = auto.name;
             this.id = id;
+            this.automaton = auto.index;
         }
 
         @Override
@@ -59,300 +287,2346 @@ public class LA {
         }
     }
 
-    static HashSet<State> acceptingStates = new HashSet<>();
-    static LinkedHashMap<State, ArrayList<String>> stateToActions = new LinkedHashMap<>();
-    static String input;
-    static int lineNumber = 1;
-    static ArrayList<Automaton> automatons = new ArrayList<>();
-    static String currentStateName;
+    // The tables of one automats.txt or automats.bin load. Lexers only read them, so any number of
+    // Lexer instances on any number of threads can share one Tables, and every load builds its own.
+    public static class Tables {
+        final List<Automaton> automatons;
+        // Character classes of the deterministic tables, class 0 has no edges
+        final char[] classMap;
+        final int numClasses;
+        // the automata step over UTF-8 bytes, lexers read a ByteSource
+        final boolean utf8;
+        // indexed by Action.tokenTypeId
+        final List<String> tokenTypes;
+        // accepting states in stateToActions order, earlier ones win
+        final List<State> accepting;
+        // bytecode of the DFAs compiled so far for --compile-limit, shared by all lexers; an
+        // automaton that was tried and does not fit into a class stays null
+        final Transitions[] compiled;
+        final boolean[] compileTried;
+        // false when the tables are too large for the dead-end memo of Lexer
+        final boolean memo;
 
-    public static void main(String[] args) throws IOException {
-        loadFromFile("automats.txt");
-        readInput();
-        analyze();
+        Tables(TableLoader loader) {
+            automatons = loader.automatons;
+            classMap = loader.classMap;
+            numClasses = loader.numClasses;
+            utf8 = loader.utf8;
+            tokenTypes = loader.tokenTypes;
+            accepting = new ArrayList<>(loader.stateToActions.keySet());
+            compiled = new Transitions[automatons.size()];
+            compileTried = new boolean[automatons.size()];
+            memo = memoFits(automatons);
+        }
+
+        // the tables GLA wrote to filename as text
+        public static Tables fromText(String filename) {
+            return new TableLoader().readText(filename);
+        }
+
+        // the tables GLA --binary wrote to filename
+        public static Tables fromBinary(String filename) throws IOException {
+            return new TableLoader().readBinary(filename);
+        }
+
+        boolean deterministic() {
+            return automatons.get(0).deterministic;
+        }
+
+        // the compiled transitions of auto, null if they could not be compiled
+        synchronized Transitions compiled(Automaton auto) {
+            if (!compileTried[auto.index]) {
+                compileTried[auto.index] = true;
+                compiled[auto.index] = TransitionCompiler.compile(auto, numClasses);
+            }
+            return compiled[auto.index];
+        }
     }
 
-    public static void readInput() throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
+    // How lexers walk the tables, from the command line arguments of LA. A lexer takes them when it
+    // is created, so lexers with different options can share one Tables.
+    public static class Options {
+        // what a lexer created without Options uses
+        static final Options DEFAULTS = new Options();
+
+        // --sim=set walks NFA tables with HashSet<State> instead of bitsets, --sim=lazy builds DFA
+        // states from them on demand and keeps at most --lazy-cache=KB of those
+        String simulation = "bitset";
+        long lazyCacheBytes = 8L << 20;
+        // --compile-limit=N compiles the tables of deterministic automata with at most N states into
+        // bytecode at startup, 0 interprets all tables
+        int compileLimit = 0;
+        // --threads=N above 1 lexes inputs of at least two --min-chunk=N characters in parallel chunks,
+        // deterministic tables and in-memory input only
+        int threads = 1;
+        int minChunk = 1 << 18;
+        // --runs=scalar|vector skips runs of characters an accepting DFA state loops on in one call
+        // instead of stepping them one by one, in-memory input only
+        RunScanner runScanner = null;
+
+        // the defaults overridden by the options among args, other arguments are skipped
+        public Options(String... args) {
+            for (String arg : args) {
+                if (arg.startsWith("--sim="))
+                    simulation = arg.substring("--sim=".length());
+                else if (arg.startsWith("--lazy-cache="))
+                    lazyCacheBytes = Long.parseLong(arg.substring("--lazy-cache=".length())) << 10;
+                else if (arg.startsWith("--threads="))
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                else if (arg.startsWith("--min-chunk="))
+                    minChunk = Integer.parseInt(arg.substring("--min-chunk=".length()));
+                else if (arg.startsWith("--runs="))
+                    runScanner = createRunScanner(arg.substring("--runs=".length()));
+                else if (arg.startsWith("--compile-limit="))
+                    compileLimit = Integer.parseInt(arg.substring("--compile-limit=".length()));
+            }
         }
-        input = sb.toString();
     }
 
-    static int start = 0;
-    static int last = 0;
-    static int end = 0;
-    static int tokenStartLine = 1;
-    static State expression = null;
+    // One way of walking the automata: the set of reachable NFA states or a single DFA state
+    interface Simulation {
+        // restarts in the initial state of automaton (an index into automatons)
+        void reset(int automaton);
+
+        // consumes a, returns false once no state is left
+        boolean step(char a);
+
+        // accepting state with the highest priority, null if there is none
+        State accepted();
 
-    public static void analyze() {
+        // current DFA state, -1 when the simulation is not a single deterministic state
+        default int stateId() {
+            return -1;
+        }
+
+        // number of automaton states the simulation is in, for the counters
+        default int activeStates() {
+            return 1;
+        }
+    }
+
+    static class NfaSimulation implements Simulation {
+        final List<Automaton> automatons;
         Set<State> R = new HashSet<>();
-        R.add(new State(automatons.get(0).name, 0));
-        R = epsilonClosure(R);
 
-        currentStateName = automatons.get(0).name;
+        NfaSimulation(Tables tables) {
+            automatons = tables.automatons;
+        }
 
-        while (end < input.length()) {
-            char a = input.charAt(end);
+        public void reset(int automaton) {
+            R = new HashSet<>();
+            R.add(new State(automatons.get(automaton), 0));
+            R = epsilonClosure(R);
+        }
 
+        public boolean step(char a) {
             R = epsilonClosure(transition(R, a));
-            end++;
+            return !R.isEmpty();
+        }
 
-            if (hasAcceptingState(R)) {
-                expression = findExpression(R);
+        public State accepted() {
+            return findExpression(R);
+        }
+
+        Set<State> transition(Set<State> R, char a) {
+            Set<State> result = new HashSet<>();
+
+            for (State s : R) {
+                Automaton auto = automatons.get(s.automaton);
+                if (a == '$') {
+                    // '$' marks epsilon edges, an input '$' walks them
+                    for (int e = auto.epsStart[s.id]; e < auto.epsStart[s.id + 1]; e++)
+                        result.add(new State(auto, auto.epsTarget[e]));
+                } else
+                    for (int e = auto.firstEdge(s.id, a); e < auto.edgeStart[s.id + 1] && auto.edgeSymbol[e] == a; e++)
+                        result.add(new State(auto, auto.edgeTarget[e]));
+                for (int e = auto.rangeStart[s.id]; e < auto.rangeStart[s.id + 1]; e++)
+                    if (auto.rangeLo[e] <= a && a <= auto.rangeHi[e])
+                        result.add(new State(auto, auto.rangeTarget[e]));
             }
+            return result;
+        }
 
-            if (R.isEmpty()) {
-                if (expression == null) {
-                    printError(start);
-                    start++;
-                    end = start;
-                    tokenStartLine = lineNumber;
+        Set<State> epsilonClosure(Set<State> R) {
+            Set<State> result = new HashSet<>(R);
+            Stack<State> stack = new Stack<>();
+            for (State s : R) {
+                stack.push(s);
+            }
 
-                    R.clear();
-                    R.add(new State(currentStateName, 0));
-                    R = epsilonClosure(R);
+            while (!stack.isEmpty()) {
+                State temp = stack.pop();
+                Automaton auto = automatons.get(temp.automaton);
+                for (int e = auto.epsStart[temp.id]; e < auto.epsStart[temp.id + 1]; e++) {
+                    State next = new State(auto, auto.epsTarget[e]);
+                    if (result.add(next))
+                        stack.push(next);
+                }
+            }
 
-                } else {
-                    // Check if this is an invalid token (like empty ZNAK '')
-                    String tokenText = input.substring(start, last);
-                    String tokenType = getTokenType(expression);
-
-                    if (tokenType != null && tokenType.equals("ZNAK") && tokenText.equals("''")) {
-                        // Reject empty ZNAK token - treat as error
-                        expression = null;
-                        printError(start);
-                        start++;
-                        end = start;
-                        tokenStartLine = lineNumber;
+            return result;
+        }
 
-                        R.clear();
-                        R.add(new State(currentStateName, 0));
-                        R = epsilonClosure(R);
-                    } else {
-                        // Valid token - process it
-                        R.clear();
-                        State t = printToken();
-                        if (t == null) {
-                            R.add(new State(currentStateName, 0));
-                            R = epsilonClosure(R);
-                        } else {
-                            R.add(t);
-                            R = epsilonClosure(R);
+        public int activeStates() {
+            return R.size();
+        }
+
+        State findExpression(Set<State> R) {
+            State best = null;
+            for (State s : R) {
+                State candidate = automatons.get(s.automaton).accept[s.id];
+                if (candidate != null && (best == null || candidate.action.priority < best.action.priority))
+                    best = candidate;
+            }
+            return best;
+        }
+    }
+
+    // NFA simulation over reused long[] bitsets. The epsilon closure of every single state is
+    // computed once up front, so a step only ORs the closures of the edge targets together
+    // and nothing is allocated per character.
+    static class BitsetNfaSimulation implements Simulation {
+        final List<Automaton> automatons;
+        long[][][] closures;
+        long[][] acceptMasks;
+        // position of an accepting state in stateToActions, lower wins
+        int[][] priorities;
+        Automaton auto;
+        long[] current;
+        long[] next;
+        int words;
+
+        BitsetNfaSimulation(Tables tables) {
+            automatons = tables.automatons;
+            closures = new long[automatons.size()][][];
+            acceptMasks = new long[automatons.size()][];
+            priorities = new int[automatons.size()][];
+            int maxWords = 1;
+            for (Automaton a : automatons) {
+                int w = (a.numStates + 63) >>> 6;
+                maxWords = Math.max(maxWords, w);
+
+                long[][] closure = new long[a.numStates][];
+                int[] stack = new int[a.numStates];
+                for (int s = 0; s < a.numStates; s++) {
+                    long[] set = new long[w];
+                    set[s >>> 6] |= 1L << s;
+                    int top = 0;
+                    stack[top++] = s;
+                    while (top > 0) {
+                        int from = stack[--top];
+                        for (int e = a.epsStart[from]; e < a.epsStart[from + 1]; e++) {
+                            int to = a.epsTarget[e];
+                            if ((set[to >>> 6] & 1L << to) == 0) {
+                                set[to >>> 6] |= 1L << to;
+                                stack[top++] = to;
+                            }
                         }
-                        tokenStartLine = lineNumber;
-                        expression = null;
                     }
+                    closure[s] = set;
                 }
+                closures[a.index] = closure;
+                acceptMasks[a.index] = new long[w];
+                priorities[a.index] = new int[a.numStates];
+            }
+
+            int priority = 0;
+            for (State state : tables.accepting) {
+                acceptMasks[state.automaton][state.id >>> 6] |= 1L << state.id;
+                priorities[state.automaton][state.id] = priority++;
             }
+
+            current = new long[maxWords];
+            next = new long[maxWords];
+        }
+
+        public void reset(int automaton) {
+            auto = automatons.get(automaton);
+            words = (auto.numStates + 63) >>> 6;
+            System.arraycopy(closures[automaton][0], 0, current, 0, words);
         }
-    }
 
-    public static Set<State> transition(Set<State> R, char a) {
-        Set<State> result = new HashSet<>();
+        public boolean step(char a) {
+            long[][] closure = closures[auto.index];
+            Arrays.fill(next, 0, words, 0L);
+            for (int w = 0; w < words; w++) {
+                long bits = current[w];
+                while (bits != 0) {
+                    int s = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    if (a == '$') {
+                        // '$' marks epsilon edges, an input '$' walks them
+                        for (int e = auto.epsStart[s]; e < auto.epsStart[s + 1]; e++)
+                            or(next, closure[auto.epsTarget[e]]);
+                    } else
+                        for (int e = auto.firstEdge(s, a); e < auto.edgeStart[s + 1] && auto.edgeSymbol[e] == a; e++)
+                            or(next, closure[auto.edgeTarget[e]]);
+                    for (int e = auto.rangeStart[s]; e < auto.rangeStart[s + 1]; e++)
+                        if (auto.rangeLo[e] <= a && a <= auto.rangeHi[e])
+                            or(next, closure[auto.rangeTarget[e]]);
+                }
+            }
 
-        for (State s : R)
-            for (Automaton auto : automatons)
-                if (auto.name.equals(s.name)) {
-                    ArrayList<Transition> trans2 = auto.transitions;
-                    for (Transition t : trans2)
-                        if (t.from == s.id && t.symbol == a)
-                            result.add(new State(s.name, t.to));
+            long[] temp = current;
+            current = next;
+            next = temp;
+
+            long any = 0;
+            for (int w = 0; w < words; w++)
+                any |= current[w];
+            return any != 0;
+        }
+
+        public int activeStates() {
+            int count = 0;
+            for (int w = 0; w < words; w++)
+                count += Long.bitCount(current[w]);
+            return count;
+        }
+
+        private void or(long[] into, long[] set) {
+            for (int w = 0; w < words; w++)
+                into[w] |= set[w];
+        }
+
+        public State accepted() {
+            return accepted(current);
+        }
+
+        // accepting state of set with the highest priority, null if there is none
+        State accepted(long[] set) {
+            long[] mask = acceptMasks[auto.index];
+            int[] priority = priorities[auto.index];
+            int best = -1;
+            for (int w = 0; w < words; w++) {
+                long bits = set[w] & mask[w];
+                while (bits != 0) {
+                    int s = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    if (best == -1 || priority[s] < priority[best])
+                        best = s;
                 }
-        return result;
+            }
+            return best == -1 ? null : auto.accept[best];
+        }
     }
 
-    public static Set<State> epsilonClosure(Set<State> R) {
-        Set<State> result = new HashSet<>(R);
-        Stack<State> stack = new Stack<>();
-        for (State s : R) {
-            stack.push(s);
+    // DFA built on demand from the NFA tables (--sim=lazy). Every NFA state set reached becomes a
+    // cached DFA state whose transitions are filled in per character class the first time they
+    // are taken, so only the part of the subset construction the input needs is ever done. The
+    // cache holds at most --lazy-cache=KB of states; when a new state does not fit, all states of
+    // all lexer states are dropped and construction restarts from the current set.
+    static class LazyDfaSimulation implements Simulation {
+        static final int UNKNOWN = -2;
+        // ids share a long with the position and lexer state in LA's dead-end memo
+        static final int MAX_STATES = (1 << 24) - 1;
+
+        static class LazyState {
+            final long[] set;
+            final State accept;
+            // target per character class, UNKNOWN until taken, -1 for no state
+            final int[] next;
+
+            LazyState(long[] set, State accept, int numClasses) {
+                this.set = set;
+                this.accept = accept;
+                this.next = new int[numClasses];
+                Arrays.fill(next, UNKNOWN);
+            }
         }
 
-        while (!stack.isEmpty()) {
-            State temp = stack.pop();
+        final List<Automaton> automatons;
+        final BitsetNfaSimulation nfa;
+        // the lexer whose dead-end memo refers to the ids of this cache
+        final Lexer lexer;
+        // classes over the edge labels of all NFAs, '$' always alone since it walks epsilon edges
+        final char[] classOf = new char[Character.MAX_VALUE + 1];
+        final int numClasses;
+        final ArrayList<ArrayList<LazyState>> states = new ArrayList<>();
+        final ArrayList<HashMap<BitSet, Integer>> ids = new ArrayList<>();
+        final int[] startIds;
+        long bytes = 0;
+        int automaton;
+        LazyState current;
+        int currentId;
+        long hits = 0;
+        long misses = 0;
+        long built = 0;
+        long flushes = 0;
 
-            for (Automaton auto : automatons)
-                if (auto.name.equals(temp.name)) {
-                    ArrayList<Transition> trans2 = auto.transitions;
-                    for (Transition t : trans2)
-                        if (t.from == temp.id && t.symbol == '$') {
-                            State e = new State(temp.name, t.to);
-                            if (result.add(e))
-                                stack.push(e);
-                        }
+        LazyDfaSimulation(Tables tables, Lexer lexer) {
+            automatons = tables.automatons;
+            nfa = new BitsetNfaSimulation(tables);
+            this.lexer = lexer;
+            TreeSet<Integer> cuts = new TreeSet<>(List.of(0, (int) '$', '$' + 1));
+            for (Automaton a : automatons) {
+                for (char c : a.edgeSymbol) {
+                    cuts.add((int) c);
+                    cuts.add(c + 1);
                 }
+                for (int e = 0; e < a.rangeLo.length; e++) {
+                    cuts.add((int) a.rangeLo[e]);
+                    cuts.add(a.rangeHi[e] + 1);
+                }
+            }
+            cuts.remove(Character.MAX_VALUE + 1);
+            int c = -1;
+            for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+                if (cuts.contains(ch))
+                    c++;
+                classOf[ch] = (char) c;
+            }
+            numClasses = c + 1;
+
+            for (int i = 0; i < automatons.size(); i++) {
+                states.add(new ArrayList<>());
+                ids.add(new HashMap<>());
+            }
+            startIds = new int[automatons.size()];
+            Arrays.fill(startIds, -1);
+        }
+
+        public void reset(int automaton) {
+            this.automaton = automaton;
+            nfa.reset(automaton);
+            if (startIds[automaton] == -1)
+                startIds[automaton] = intern(nfa.closures[automaton][0]);
+            enter(startIds[automaton]);
+        }
+
+        public boolean step(char a) {
+            if (current == null)
+                return false;
+            int c = classOf[a];
+            int target = current.next[c];
+            if (target == UNKNOWN) {
+                misses++;
+                System.arraycopy(current.set, 0, nfa.current, 0, nfa.words);
+                LazyState from = current;
+                target = nfa.step(a) ? intern(nfa.current) : -1;
+                // a flush inside intern drops from, caching the edge there is harmless
+                from.next[c] = target;
+            } else
+                hits++;
+            enter(target);
+            return current != null;
+        }
+
+        public State accepted() {
+            return current == null ? null : current.accept;
+        }
+
+        public int stateId() {
+            return currentId;
+        }
+
+        private void enter(int id) {
+            currentId = id;
+            current = id == -1 ? null : states.get(automaton).get(id);
+        }
+
+        // id of the DFA state for set in the current automaton, adding it if it is new
+        private int intern(long[] set) {
+            BitSet key = BitSet.valueOf(Arrays.copyOf(set, nfa.words));
+            Integer id = ids.get(automaton).get(key);
+            if (id != null)
+                return id;
+
+            long cost = 16L * nfa.words + 4L * numClasses + 128;
+            ArrayList<LazyState> list = states.get(automaton);
+            if (bytes + cost > lexer.options.lazyCacheBytes && bytes > 0 || list.size() == MAX_STATES)
+                flush();
+            id = list.size();
+            list.add(new LazyState(Arrays.copyOf(set, nfa.words), nfa.accepted(set), numClasses));
+            ids.get(automaton).put(key, id);
+            bytes += cost;
+            built++;
+            return id;
+        }
+
+        // Drops every cached state. Ids are reused afterwards, so the dead ends LA remembers by
+        // (position, lexer state, DFA state) are forgotten too.
+        private void flush() {
+            for (int i = 0; i < automatons.size(); i++) {
+                states.get(i).clear();
+                ids.get(i).clear();
+            }
+            Arrays.fill(startIds, -1);
+            bytes = 0;
+            flushes++;
+            lexer.failed.clear();
+            lexer.trailSize = 0;
+        }
+    }
+
+    static class DfaSimulation implements Simulation {
+        final List<Automaton> automatons;
+        final char[] classMap;
+        final int numClasses;
+        Automaton auto;
+        int state;
+
+        DfaSimulation(Tables tables) {
+            automatons = tables.automatons;
+            classMap = tables.classMap;
+            numClasses = tables.numClasses;
+        }
+
+        public void reset(int automaton) {
+            auto = automatons.get(automaton);
+            state = 0;
+        }
+
+        public boolean step(char a) {
+            state = auto.delta[state * numClasses + classMap[a]];
+            return state != -1;
+        }
+
+        public State accepted() {
+            return state == -1 ? null : auto.accept[state];
         }
 
-        return result;
+        public int stateId() {
+            return state;
+        }
     }
 
-    public static boolean hasAcceptingState(Set<State> R) {
-        for (State s : R)
-            if (acceptingStates.contains(s)) return true;
-        return false;
+    // Transition function of one deterministic automaton: target of state on character class c, or -1
+    interface Transitions {
+        int next(int state, int c);
     }
 
-    public static State findExpression(Set<State> R) {
-        HashSet<State> tempSet = new HashSet<>(R);
-        tempSet.retainAll(acceptingStates);
+    // Compiles a DFA table into a hidden class: next() is a tableswitch over states that calls
+    // one method per state, and every state method is a tableswitch over character classes that
+    // returns its target as a constant. Class file version 49 is verified without stack map frames.
+    static class TransitionCompiler {
+        static final int TABLESWITCH = 0xAA;
+        static final int IRETURN = 0xAC;
+        static final int INVOKESTATIC = 0xB8;
+
+        final int numClasses;
+        ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        DataOutputStream pool = new DataOutputStream(poolBytes);
+        HashMap<String, Integer> poolIndex = new HashMap<>();
+        int poolCount = 1;
+
+        TransitionCompiler(int numClasses) {
+            this.numClasses = numClasses;
+        }
+
+        // The transitions of auto as bytecode, or null when they do not fit the class file limits
+        // and the caller has to keep interpreting the table
+        static Transitions compile(Automaton auto, int numClasses) {
+            if (!fits(auto.numStates)) {
+                System.err.println("The tables of " + auto.name + " are too large to compile, interpreting them");
+                return null;
+            }
+            try {
+                byte[] bytes = new TransitionCompiler(numClasses).classFile(auto);
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+                return (Transitions) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+            } catch (Throwable e) {
+                System.err.println("Could not compile the tables of " + auto.name + ", interpreting them: " + e);
+                return null;
+            }
+        }
+
+        // State ids are pushed with sipush, next() spends 9 bytes of code per state on the
+        // tableswitch entry and call, and every state method takes 3 constant pool entries
+        static boolean fits(int numStates) {
+            return numStates <= Short.MAX_VALUE
+                    && 9L * numStates + 32 <= 65535
+                    && 3L * numStates + 16 < 65535;
+        }
+
+        byte[] classFile(Automaton auto) throws IOException {
+            String name = "LA$Compiled";
+            int thisClass = classRef(name);
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef("LA$Transitions");
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int code = utf8("Code");
+
+            ArrayList<byte[]> methods = new ArrayList<>();
+            methods.add(method(0x0001, "<init>", "()V", code, 1, 1,
+                    new byte[]{0x2A, (byte) 0xB7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xB1}));
+
+            // next(state, c): switch on state, then call the method of that state with c
+            ByteArrayOutputStream next = new ByteArrayOutputStream();
+            next.write(0x1B); // iload_1
+            int[] targets = new int[auto.numStates];
+            int switchStart = next.size();
+            int defaultAt = switchStart + 1 + pad(switchStart) + 12 + 4 * auto.numStates;
+            int at = defaultAt + 2;
+            for (int s = 0; s < auto.numStates; s++) {
+                targets[s] = at;
+                at += 5;
+            }
+            tableswitch(next, switchStart, defaultAt, targets);
+            next.write(0x02); // iconst_m1
+            next.write(IRETURN);
+            for (int s = 0; s < auto.numStates; s++) {
+                int ref = methodRef(name, "s" + s, "(I)I");
+                next.write(0x1C); // iload_2
+                next.write(INVOKESTATIC);
+                next.write(ref >> 8);
+                next.write(ref);
+                next.write(IRETURN);
+            }
+            methods.add(method(0x0001, "next", "(II)I", code, 2, 3, next.toByteArray()));
+
+            // s<k>(c): switch on the character class, one constant return per distinct target
+            for (int s = 0; s < auto.numStates; s++) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                body.write(0x1A); // iload_0
+                int start = body.size();
+                int tableEnd = start + 1 + pad(start) + 12 + 4 * numClasses;
+                int[] caseAt = new int[numClasses];
+                LinkedHashMap<Integer, Integer> targetAt = new LinkedHashMap<>();
+                int offset = tableEnd + 2;
+                for (int c = 0; c < numClasses; c++) {
+                    int target = auto.delta[s * numClasses + c];
+                    if (target == -1) {
+                        caseAt[c] = tableEnd;
+                        continue;
+                    }
+                    Integer existing = targetAt.get(target);
+                    if (existing == null) {
+                        existing = offset;
+                        targetAt.put(target, offset);
+                        offset += constantSize(target) + 1;
+                    }
+                    caseAt[c] = existing;
+                }
+                tableswitch(body, start, tableEnd, caseAt);
+                body.write(0x02); // iconst_m1
+                body.write(IRETURN);
+                for (int target : targetAt.keySet()) {
+                    pushConstant(body, target);
+                    body.write(IRETURN);
+                }
+                methods.add(method(0x000A, "s" + s, "(I)I", code, 1, 1, body.toByteArray()));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] m : methods)
+                out.write(m);
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+
+        byte[] method(int access, String name, String descriptor, int code, int maxStack, int maxLocals, byte[] body) throws IOException {
+            if (body.length > 65535)
+                throw new IOException("Method " + name + " is too large");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(code);
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+
+        // tableswitch over 0 .. targets.length - 1, offsets are relative to the opcode at start
+        static void tableswitch(ByteArrayOutputStream code, int start, int defaultAt, int[] targets) {
+            code.write(TABLESWITCH);
+            for (int i = 0; i < pad(start); i++)
+                code.write(0);
+            writeInt(code, defaultAt - start);
+            writeInt(code, 0);
+            writeInt(code, targets.length - 1);
+            for (int target : targets)
+                writeInt(code, target - start);
+        }
+
+        // padding after a tableswitch opcode at start, the operands are 4-byte aligned
+        static int pad(int start) {
+            return 3 - (start % 4);
+        }
+
+        static void writeInt(ByteArrayOutputStream code, int value) {
+            code.write(value >> 24);
+            code.write(value >> 16);
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        static int constantSize(int value) {
+            return value <= 5 ? 1 : value <= Byte.MAX_VALUE ? 2 : 3;
+        }
 
-        for (Map.Entry<State, ArrayList<String>> entry : stateToActions.entrySet())
-            if (tempSet.contains(entry.getKey())) {
-                last = end;
-                return entry.getKey();
+        static void pushConstant(ByteArrayOutputStream code, int value) {
+            if (value <= 5) {
+                code.write(0x03 + value); // iconst_<value>
+            } else if (value <= Byte.MAX_VALUE) {
+                code.write(0x10); // bipush
+                code.write(value);
+            } else if (value <= Short.MAX_VALUE) {
+                code.write(0x11); // sipush
+                code.write(value >> 8);
+                code.write(value);
+            } else {
+                throw new IllegalArgumentException("State " + value + " does not fit sipush");
             }
-        return null;
+        }
+
+        int utf8(String s) throws IOException {
+            Integer index = poolIndex.get("U" + s);
+            if (index != null)
+                return index;
+            pool.writeByte(1);
+            pool.writeUTF(s);
+            poolIndex.put("U" + s, poolCount);
+            return poolCount++;
+        }
+
+        int classRef(String name) throws IOException {
+            int nameIndex = utf8(name);
+            Integer index = poolIndex.get("C" + name);
+            if (index != null)
+                return index;
+            pool.writeByte(7);
+            pool.writeShort(nameIndex);
+            poolIndex.put("C" + name, poolCount);
+            return poolCount++;
+        }
+
+        int methodRef(String owner, String name, String descriptor) throws IOException {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = poolIndex.get(key);
+            if (index != null)
+                return index;
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(descriptor);
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(typeIndex);
+            int nameAndType = poolCount++;
+            pool.writeByte(10);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+            poolIndex.put(key, poolCount);
+            return poolCount++;
+        }
     }
 
-    public static String getTokenType(State expression) {
-        if (expression == null) return null;
-        for (Map.Entry<State, ArrayList<String>> entry : stateToActions.entrySet()) {
-            if (entry.getKey().equals(expression)) {
-                return entry.getValue().get(0);
+    // DFA walk through compiled transitions, automata above --compile-limit keep the table
+    static class CompiledDfaSimulation implements Simulation {
+        final List<Automaton> automatons;
+        final char[] classMap;
+        Transitions[] compiled;
+        Automaton auto;
+        Transitions transitions;
+        int state;
+
+        CompiledDfaSimulation(Tables tables, int compileLimit) {
+            automatons = tables.automatons;
+            classMap = tables.classMap;
+            int numClasses = tables.numClasses;
+            compiled = new Transitions[automatons.size()];
+            for (Automaton a : automatons) {
+                if (a.numStates <= compileLimit)
+                    compiled[a.index] = tables.compiled(a);
+                if (compiled[a.index] == null) {
+                    int[] delta = a.delta;
+                    compiled[a.index] = (s, c) -> delta[s * numClasses + c];
+                }
             }
         }
-        return null;
+
+        public void reset(int automaton) {
+            auto = automatons.get(automaton);
+            transitions = compiled[automaton];
+            state = 0;
+        }
+
+        public boolean step(char a) {
+            state = transitions.next(state, classMap[a]);
+            return state != -1;
+        }
+
+        public State accepted() {
+            return state == -1 ? null : auto.accept[state];
+        }
+
+        public int stateId() {
+            return state;
+        }
     }
 
-    public static void printError(int position) {
-        if (position < input.length()) {
-            char symbol = input.charAt(position);
-             System.err.println("Error: unrecognized symbol '" + symbol + "' at position " + position);
-        } else {
-             System.err.println("Lexical error at end of input.");
-        }
-    }
-
-    public static State printToken() {
-        State result = null;
-        boolean vratiSe0 = false;
-
-        for (Map.Entry<State, ArrayList<String>> entry : stateToActions.entrySet()) {
-            if (entry.getKey().equals(expression)) {
-                // Handle VRATI_SE (RETURN)
-                for (int i = 1; i < entry.getValue().size(); i++) {
-                    if (entry.getValue().get(i).startsWith("VRATI_SE")) {
-                        int temp = Integer.parseInt(entry.getValue().get(i).substring("VRATI_SE ".length()));
-                        if (temp == 0) {
-                            // VRATI_SE 0: keep token as-is, but re-read last character
-                            vratiSe0 = true;
-                        } else {
-                            // VRATI_SE N: remove N characters from token
-                            last = last - temp;
-                            end = end - temp;
-                        }
-                    }
+    // Pulls tokens out of one input with tables loaded earlier. All scan state lives in the instance
+    // and the Tables are only read, so lexers for different inputs can run at the same time on
+    // different threads, each with its own Options.
+    public static class Lexer implements Iterator<Token> {
+        final Tables tables;
+        final Options options;
+        final Source input;
+        // the whole text for --runs, null when runs are not skipped
+        final char[] chars;
+        final Simulation sim;
+        // stays queryable after the last token so diagnostics can be mapped back to line and column,
+        // under --stream only for the lines from the last token on
+        final LineIndex lines;
+        // no token starts at or after limit, the end of the input unless the lexer covers a chunk
+        final int limit;
+        // the token being matched starts at start, end is the next character to read and the
+        // longest match so far is expression over [start, last)
+        int start = 0;
+        int last = 0;
+        int end = 0;
+        State expression = null;
+        // current lexer state, an index into automatons
+        int lexerState = 0;
+
+        // Reps' memo for linear-time maximal munch: (lexer state, DFA state, position) triples from
+        // which no accepting state is reachable. A scan that reaches one stops right there, so
+        // restarts after errors or VRATI_SE never walk the same dead end twice.
+        HashSet<Long> failed = new HashSet<>();
+        int pruneAt = 4096;
+        // triples visited since the last accepting state of the current scan
+        long[] trail = new long[64];
+        int trailSize = 0;
+        // furthest position stepped so far and the number of steps taken behind it
+        int scanned = 0;
+        long rescanned = 0;
+        // read ahead by hasNext()
+        Token peeked;
+        // the lexemes of this lexer's tokens
+        final Lexemes lexemes = new Lexemes();
+        // null unless COUNTERS
+        final Counts counts;
+
+        public Lexer(Tables tables, String text) {
+            this(tables, text, Options.DEFAULTS);
+        }
+
+        public Lexer(Tables tables, String text, Options options) {
+            this(tables, tables.utf8 ? new ByteSource(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8))) : new StringSource(text),
+                    options.runScanner != null && !tables.utf8 ? text.toCharArray() : null, options);
+        }
+
+        // UTF-8 input from position to limit of bytes, lexed as is by --utf8 tables
+        public Lexer(Tables tables, ByteBuffer bytes) {
+            this(tables, bytes, Options.DEFAULTS);
+        }
+
+        public Lexer(Tables tables, ByteBuffer bytes, Options options) {
+            this(tables, tables.utf8 ? new ByteSource(bytes) : new StringSource(StandardCharsets.UTF_8.decode(bytes).toString()), null, options);
+        }
+
+        Lexer(Tables tables, Source input, char[] chars, Options options) {
+            this(tables, input, chars, options, 0, Integer.MAX_VALUE, 0, new LineIndex());
+        }
+
+        // Lexes the tokens that start in [from, limit) of input, the first one in lexerState.
+        // lines numbers the line that holds from.
+        Lexer(Tables tables, Source input, char[] chars, Options options, int from, int limit, int lexerState, LineIndex lines) {
+            this.tables = tables;
+            this.options = options;
+            this.input = input;
+            this.chars = chars;
+            this.lines = lines;
+            this.limit = limit;
+            this.lexerState = lexerState;
+            start = last = end = scanned = from;
+            counts = COUNTERS ? new Counts(tables) : null;
+            sim = createSimulation(tables, this);
+            sim.reset(lexerState);
+        }
+
+        // line starts of the input scanned so far, for mapping diagnostic offsets to lines and columns
+        public LineIndex lines() {
+            return lines;
+        }
+
+        public boolean hasNext() {
+            if (peeked == null)
+                peeked = nextToken();
+            return peeked != null;
+        }
+
+        public Token next() {
+            Token token = nextToken();
+            if (token == null)
+                throw new NoSuchElementException();
+            return token;
+        }
+
+        // The next token, or a Token with a null type for a character no rule matches.
+        // Returns null at the end of the input.
+        public Token nextToken() {
+            if (peeked != null) {
+                Token token = peeked;
+                peeked = null;
+                return token;
+            }
+
+            Token token = null;
+            while (token == null && start < limit && input.has(end)) {
+                char a = input.charAt(end);
+                if (end < scanned) {
+                    rescanned++;
+                } else {
+                    scanned = end + 1;
+                    if (a == '\n')
+                        lines.add(end + 1);
                 }
 
-                // Count newlines in the consumed text BEFORE processing actions
-                String consumedText = input.substring(start, last);
-                for (int i = 0; i < consumedText.length(); i++) {
-                    if (consumedText.charAt(i) == '\n') {
-                        lineNumber++;
-                        String newStr = consumedText.substring(0, i) + consumedText.substring(i + 1);
-                        consumedText = newStr;
+                boolean alive = sim.step(a);
+                end++;
+                if (COUNTERS)
+                    counts.step(lexerState, alive ? sim.activeStates() : 0);
+
+                int id = sim.stateId();
+                // -1 also when the tables are too large for the memo keys
+                int key = tables.memo ? id : -1;
+                long triple = ((long) end << 32) | ((long) lexerState << 24) | key;
+                if (alive && key != -1 && !failed.isEmpty() && failed.contains(triple))
+                    alive = false;
+
+                State accepted = sim.accepted();
+                if (accepted != null) {
+                    expression = accepted;
+                    last = end;
+                    trailSize = 0;
+                    // a self-loop keeps the DFA state and its acceptance, only end moves
+                    if (chars != null && id != -1) {
+                        char[][] runs = tables.automatons.get(lexerState).runs;
+                        if (runs != null && runs[id] != null)
+                            skipRun(runs[id]);
                     }
+                } else if (alive && key != -1) {
+                    if (trailSize == trail.length)
+                        trail = Arrays.copyOf(trail, trailSize * 2);
+                    trail[trailSize++] = triple;
                 }
 
-                String displayText = consumedText;
-                String tokenType = entry.getValue().get(0);
+                if (!alive) {
+                    for (int i = 0; i < trailSize; i++)
+                        failed.add(trail[i]);
+                    trailSize = 0;
 
-                if (!tokenType.equals("-") && !displayText.isEmpty()) {
-                    System.out.println(tokenType.trim() + " " + tokenStartLine + " " + displayText.trim());
-                }
+                    Action action = expression == null ? null : expression.action;
+                    if (action != null && action.keywords != null)
+                        action = action.keywords.lookup(input, start, last, action);
+                    // the empty ZNAK '' is not a token either
+                    if (action == null || action.znak && last - start == 2
+                            && input.charAt(start) == '\'' && input.charAt(start + 1) == '\'') {
+                        int width = input.width(start);
+                        if (COUNTERS)
+                            counts.error(start, end, width);
+                        token = token(-1, start, start + width);
+                        start += width;
+                        end = start;
+                    } else {
+                        if (COUNTERS)
+                            counts.match(action, start, last, end);
+                        token = accept(action);
+                    }
+                    expression = null;
+                    sim.reset(lexerState);
 
-                for (int i = 1; i < entry.getValue().size(); i++) {
-                    if (entry.getValue().get(i).startsWith("UDJI_U_STANJE")) {
-                        String temp = entry.getValue().get(i).substring("UDJI_U_STANJE ".length());
-                        result = new State(temp, 0);
-                        currentStateName = temp;
-                    } else if (entry.getValue().get(i).equals("NOVI_REDAK")) {
-                        // NOVI_REDAK is now handled by counting newlines in consumed text above
-                        // This action exists but we don't need to increment here
+                    input.release(start);
+                    // the line of a returned token is still looked up when it is printed
+                    if (!input.retains())
+                        lines.release(token == null ? start : token.offset);
+                    // scans only go forward from start, older triples can never be hit again
+                    if (failed.size() > pruneAt) {
+                        int from = start;
+                        failed.removeIf(t -> (t >>> 32) <= from);
+                        pruneAt = Math.max(4096, 2 * failed.size());
                     }
                 }
+            }
+            if (COUNTERS && token == null)
+                counts.flush();
+            return token;
+        }
 
-                if (vratiSe0) {
-                    // For VRATI_SE 0: re-read the last character and include it in next token
-                    start = last - 1;
-                    end = last - 1;
-                } else {
-                    start = last;
-                    end = last;
-                }
+        // Runs the actions of the longest match, returns its token or null for "-" and empty tokens
+        Token accept(Action action) {
+            // VRATI_SE N: remove N characters from token
+            if (action.pushBack > 0)
+                last = input.back(last, action.pushBack);
+
+            Token token = null;
+            if (action.emits && last > start)
+                token = token(action.tokenTypeId, start, last);
+
+            if (action.enterState != -1)
+                lexerState = action.enterState;
+
+            // For VRATI_SE 0: re-read the last character and include it in next token
+            start = action.reread ? input.back(last, 1) : last;
+            end = start;
+            return token;
+        }
+
+        // The token over [from, to) of the input. Its lexeme is only copied out right away when
+        // the input is a stream that will not keep it.
+        Token token(int typeId, int from, int to) {
+            Token token = new Token(typeId, typeId == -1 ? null : tables.tokenTypes.get(typeId), input, lexemes,
+                    from, to - from, lines.line(from), lines.column(from));
+            if (!input.retains())
+                token.text();
+            return token;
+        }
 
-                break;
+        void skipRun(char[] ranges) {
+            int to = options.runScanner.skip(chars, end, chars.length, ranges);
+            if (to == end)
+                return;
+            if (COUNTERS)
+                counts.run(lexerState, to - end);
+            if (end < scanned)
+                rescanned += Math.min(to, scanned) - end;
+            if (to > scanned) {
+                for (int r = 0; r < ranges.length; r += 2)
+                    if (ranges[r] <= '\n' && '\n' <= ranges[r + 1]) {
+                        for (int i = Math.max(end, scanned); i < to; i++)
+                            if (chars[i] == '\n')
+                                lines.add(i + 1);
+                        break;
+                    }
+                scanned = to;
             }
+            end = to;
+            last = end;
         }
-        return result;
     }
 
-    public static void loadFromFile(String filename) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            Automaton current = null;
-            String line;
+    // The tokens that start in [from, limit) of a string input, lexed by a Lexer of their own for
+    // analyzeParallel. Lines are numbered by the line index of the whole input.
+    static class ChunkLexer {
+        final Tables tables;
+        final Options options;
+        final StringSource source;
+        final char[] chars;
+        // line starts of the whole input, only read on the thread that splits it
+        final LineIndex lines;
+        final int from;
+        final int limit;
+        final int firstLine;
+        final ArrayList<Token> tokens = new ArrayList<>();
+        // the lexer of the last run, the next token would start at lexer.start in lexer.lexerState
+        Lexer lexer;
+        // where the last run started, for --stats
+        int runFrom;
+        // true if the input ended before a token reached limit
+        boolean endOfInput;
+
+        ChunkLexer(Tables tables, Options options, StringSource source, char[] chars, LineIndex lines, int from, int limit) {
+            this.tables = tables;
+            this.options = options;
+            this.source = source;
+            this.chars = chars;
+            this.lines = lines;
+            this.from = from;
+            this.limit = limit;
+            firstLine = lines.line(from);
+        }
+
+        // from is a line start, every chunk is cut after a newline
+        void run() {
+            lex(from, 0, new LineIndex(firstLine, from));
+        }
+
+        // lexes the chunk again from where the previous one stopped
+        void restart(int start, int lexerState) {
+            int line = lines.line(start);
+            lex(start, lexerState, new LineIndex(line, lines.lineStart(line)));
+        }
+
+        void lex(int start, int lexerState, LineIndex chunkLines) {
+            runFrom = start;
+            lexer = new Lexer(tables, source, chars, options, start, limit, lexerState, chunkLines);
+            tokens.clear();
+            for (Token token = lexer.nextToken(); token != null; token = lexer.nextToken())
+                tokens.add(token);
+            endOfInput = lexer.start < limit;
+        }
+    }
 
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
+    // Finds the end of a run: the first position in [from, to) whose character lies outside the
+    // inclusive ranges lo0, hi0, lo1, hi1..., or to
+    interface RunScanner {
+        int skip(char[] text, int from, int to, char[] ranges);
+    }
 
-                if (line.startsWith("Automat:")) {
-                    current = new Automaton();
-                    current.name = line.substring("Automat:".length()).trim();
-                    automatons.add(current);
+    static class ScalarRunScanner implements RunScanner {
+        public int skip(char[] text, int from, int to, char[] ranges) {
+            for (int i = from; i < to; i++) {
+                char c = text[i];
+                boolean in = false;
+                for (int r = 0; r < ranges.length && !in; r += 2)
+                    in = c >= ranges[r] && c <= ranges[r + 1];
+                if (!in)
+                    return i;
+            }
+            return to;
+        }
+    }
 
-                } else if (line.startsWith("Acceptable:")) {
-                    while ((line = reader.readLine()) != null && !line.startsWith("Transitions:")) {
-                        line = line.trim();
-                        if (line.isEmpty()) continue;
+    // --runs=vector uses VectorRunScanner from LA/vector, which is compiled on its own with the
+    // jdk.incubator.vector module; without it the scalar scanner is used
+    static RunScanner createRunScanner(String kind) {
+        if (kind.equals("vector")) {
+            try {
+                return (RunScanner) Class.forName("VectorRunScanner").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("Vector API not available, skipping runs with the scalar scanner");
+            }
+        }
+        return new ScalarRunScanner();
+    }
 
-                        if (!line.contains(":")) continue;
+    // Lexer input addressed by absolute position
+    interface Source {
+        // true if there is a character at pos, may block to read more input
+        boolean has(int pos);
 
-                        String[] parts = line.split(":", 2);
-                        if (parts.length < 2) continue;
+        char charAt(int pos);
 
-                        String left = parts[0].trim();
-                        if (left.isEmpty()) continue;
+        String substring(int from, int to);
 
-                        int stateNum = Integer.parseInt(left);
+        // the chars from from to to, a view where the source allows it and a copy otherwise
+        default CharSequence subSequence(int from, int to) {
+            return substring(from, to);
+        }
 
-                        String actionsStr = parts[1].trim();
-                        State state = new State(current.name, stateNum);
-                        acceptingStates.add(state);
+        // positions below pos will not be read again
+        void release(int pos);
 
-                        ArrayList<String> actions = new ArrayList<>();
-                        String[] split = actionsStr.split(",\\s*");
-                        for (String s : split)
-                            if (!s.isEmpty()) actions.add(s);
-                        stateToActions.put(state, actions);
-                    }
-                } else if (line.matches("\\d+ --.+--> \\d+")) {
-                    if (current != null) {
-                        String[] parts = line.split(" ");
-                        int from = Integer.parseInt(parts[0]);
-                        String sym = parts[1].substring(2, parts[1].length() - 3);
-                        char symbol;
-                        if (sym.equals("$")) symbol = '$';
-                        else if (sym.equals("\\n")) symbol = '\n';
-                        else if (sym.equals("\\t")) symbol = '\t';
-                        else if (sym.equals("\\_")) symbol = ' ';
-                        else symbol = sym.charAt(0);
-                        int to = Integer.parseInt(parts[2]);
-                        current.transitions.add(new Transition(from, to, symbol));
-                    }
+        // false if released positions are overwritten, so tokens cannot read them later
+        default boolean retains() {
+            return true;
+        }
 
-                } else if (line.equals("-----")) {
-                    current = null;
-                }
-            }
+        // positions the character at pos takes, more than one for a multi-byte UTF-8 sequence
+        default int width(int pos) {
+            return 1;
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        // position n characters before pos
+        default int back(int pos, int n) {
+            return pos - n;
+        }
+
+        // chars of input before pos, what error messages report
+        default int charOffset(int pos) {
+            return pos;
+        }
+    }
+
+    static class StringSource implements Source {
+        final String text;
+
+        StringSource(String text) {
+            this.text = text;
+        }
+
+        public boolean has(int pos) {
+            return pos < text.length();
+        }
+
+        public char charAt(int pos) {
+            return text.charAt(pos);
+        }
+
+        public String substring(int from, int to) {
+            return text.substring(from, to);
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            return CharBuffer.wrap(text, from, to);
+        }
+
+        public void release(int pos) {
+        }
+    }
+
+    // UTF-8 input for tables over bytes (GLA --utf8). Positions are byte offsets and the DFA steps
+    // over raw bytes, a lexeme is only decoded when its token is emitted. Malformed sequences
+    // become U+FFFD there like they do when the input is decoded up front, but no rule matches them.
+    static class ByteSource implements Source {
+        final ByteBuffer bytes;
+        // charOffset(countedBytes) is countedChars, offsets are asked for in increasing order
+        int countedBytes = 0;
+        int countedChars = 0;
+
+        ByteSource(ByteBuffer bytes) {
+            this.bytes = bytes.slice();
+        }
+
+        public boolean has(int pos) {
+            return pos < bytes.limit();
+        }
+
+        public char charAt(int pos) {
+            return (char) (bytes.get(pos) & 0xFF);
+        }
+
+        public String substring(int from, int to) {
+            if (bytes.hasArray())
+                return new String(bytes.array(), bytes.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+            byte[] lexeme = new byte[to - from];
+            bytes.get(from, lexeme);
+            return new String(lexeme, StandardCharsets.UTF_8);
+        }
+
+        public void release(int pos) {
+        }
+
+        public int width(int pos) {
+            int b = bytes.get(pos) & 0xFF;
+            int width = b > 0xF4 ? 1 : b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC2 ? 2 : 1;
+            int end = pos + 1;
+            while (end < pos + width && has(end) && (bytes.get(end) & 0xC0) == 0x80)
+                end++;
+            return end - pos;
+        }
+
+        // steps back over whole sequences, a character outside the BMP counts as one
+        public int back(int pos, int n) {
+            for (int i = 0; i < n && pos > 0; i++) {
+                pos--;
+                while (pos > 0 && (bytes.get(pos) & 0xC0) == 0x80)
+                    pos--;
+            }
+            return pos;
+        }
+
+        public int charOffset(int pos) {
+            if (pos < countedBytes) {
+                countedBytes = 0;
+                countedChars = 0;
+            }
+            while (countedBytes < pos) {
+                int width = width(countedBytes);
+                countedChars += width == 4 ? 2 : 1;
+                countedBytes += width;
+            }
+            return countedChars;
+        }
+    }
+
+    // Decodes the input lazily into a ring buffer that keeps only the characters from the start
+    // of the current token to the furthest lookahead, so memory stays constant and lexing starts
+    // before EOF. Line ends are normalized the way readInput does it. The buffer only grows
+    // when a single token and its lookahead do not fit.
+    static class StreamSource implements Source {
+        final ReadableByteChannel channel;
+        final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer bytes = ByteBuffer.allocate(8192);
+        final CharBuffer chars = CharBuffer.allocate(8192);
+        char[] ring;
+        int mask;
+        // characters in [base, limit) are in the ring
+        int base;
+        int limit;
+        boolean eof;
+        // the previous character was a '\r', a '\n' right after it belongs to the same line end
+        boolean pendingCr;
+
+        StreamSource(ReadableByteChannel channel, int capacity) {
+            this.channel = channel;
+            ring = new char[Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1];
+            mask = ring.length - 1;
+        }
+
+        public boolean has(int pos) {
+            while (pos >= limit && !eof)
+                fill();
+            return pos < limit;
+        }
+
+        public char charAt(int pos) {
+            return ring[pos & mask];
+        }
+
+        public String substring(int from, int to) {
+            int offset = from & mask;
+            int length = to - from;
+            if (offset + length <= ring.length)
+                return new String(ring, offset, length);
+            int head = ring.length - offset;
+            return new String(ring, offset, head) + new String(ring, 0, length - head);
+        }
+
+        public void release(int pos) {
+            base = Math.max(base, Math.min(pos, limit));
+        }
+
+        public boolean retains() {
+            return false;
+        }
+
+        private void fill() {
+            try {
+                int read = channel.read(bytes);
+                bytes.flip();
+                chars.clear();
+                decoder.decode(bytes, chars, read == -1);
+                if (read == -1)
+                    decoder.flush(chars);
+                bytes.compact();
+                chars.flip();
+                while (chars.hasRemaining())
+                    put(chars.get());
+
+                if (read == -1) {
+                    // readLine ends an unterminated last line too
+                    if (limit > 0 && ring[(limit - 1) & mask] != '\n')
+                        put('\n');
+                    eof = true;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void put(char c) {
+            if (pendingCr) {
+                pendingCr = false;
+                if (c == '\n') return;
+            }
+            if (c == '\r') {
+                pendingCr = true;
+                c = '\n';
+            }
+            if (limit - base == ring.length)
+                grow();
+            ring[limit & mask] = c;
+            limit++;
+        }
+
+        private void grow() {
+            char[] bigger = new char[ring.length * 2];
+            int biggerMask = bigger.length - 1;
+            for (int pos = base; pos < limit; pos++)
+                bigger[pos & biggerMask] = ring[pos & mask];
+            ring = bigger;
+            mask = biggerMask;
+        }
+    }
+
+    // Offsets where source lines start, filled as the scan first passes each '\n'. Offsets count
+    // bytes when the tables are over UTF-8, like token offsets.
+    public static class LineIndex {
+        int[] starts = new int[256];
+        int count = 1;
+        // lines before starts[0], dropped by release or before the line a chunk starts in
+        int base = 0;
+        // line of the last lookup, tokens mostly move forward so lookups stay O(1)
+        int cursor = 0;
+
+        LineIndex() {
+        }
+
+        // an index whose first line is line, starting at offset
+        LineIndex(int line, int offset) {
+            base = line - 1;
+            starts[0] = offset;
+        }
+
+        void add(int offset) {
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, count * 2);
+            starts[count++] = offset;
+        }
+
+        // 1-based line of offset
+        public int line(int offset) {
+            while (cursor + 1 < count && starts[cursor + 1] <= offset)
+                cursor++;
+            while (starts[cursor] > offset)
+                cursor--;
+            return base + cursor + 1;
+        }
+
+        // 1-based column of offset
+        public int column(int offset) {
+            return offset - starts[line(offset) - 1 - base] + 1;
+        }
+
+        // offset where the 1-based line starts
+        public int lineStart(int line) {
+            return starts[line - 1 - base];
+        }
+
+        // Forgets the starts of the lines before the one that holds offset, no lookup goes below it
+        // any more. Under --stream it keeps the index to the lines still in the ring buffer; the
+        // starts are moved down once they are at least half of the array.
+        void release(int offset) {
+            int k = line(offset) - 1 - base;
+            if (k < 256 || 2 * k < count)
+                return;
+            System.arraycopy(starts, k, starts, 0, count - k);
+            count -= k;
+            base += k;
+            cursor -= k;
+        }
+
+        // lines whose start the scan has passed so far
+        public int lineCount() {
+            return base + count;
+        }
+    }
+
+    public static class Token {
+        // index into the token types and its name, -1 and null for an unrecognized character
+        public final int typeId;
+        public final String type;
+        // position and extent in the input, in bytes when the tables are over UTF-8
+        public final int offset;
+        public final int length;
+        public final int line;
+        public final int column;
+        // the lexeme is read from the input only when it is asked for
+        final Source input;
+        final Lexemes lexemes;
+        String text;
+
+        Token(int typeId, String type, Source input, Lexemes lexemes, int offset, int length, int line, int column) {
+            this.typeId = typeId;
+            this.type = type;
+            this.input = input;
+            this.lexemes = lexemes;
+            this.offset = offset;
+            this.length = length;
+            this.line = line;
+            this.column = column;
+        }
+
+        // the lexeme as it appears in the input, without copying it out of in-memory text
+        public CharSequence lexeme() {
+            return text != null ? text : input.subSequence(offset, offset + length);
+        }
+
+        // The lexeme as a String. Equal lexemes of one lexer are the same instance, built once;
+        // call it on the lexer's thread.
+        public String text() {
+            if (text == null)
+                text = lexemes.intern(input, offset, offset + length);
+            return text;
+        }
+    }
+
+    // Interns lexemes by a content hash read straight from the input, so a lexeme seen before
+    // costs no String. Lexemes whose chars are not their input positions one for one, i.e.
+    // non-ASCII ones read as UTF-8 bytes, are not kept, and the table stops growing at LIMIT.
+    static class Lexemes {
+        static final int LIMIT = 1 << 16;
+        String[] table = new String[256];
+        int size = 0;
+
+        String intern(Source input, int from, int to) {
+            // String.hashCode of the lexeme
+            int hash = 0;
+            for (int i = from; i < to; i++)
+                hash = 31 * hash + input.charAt(i);
+            int mask = table.length - 1;
+            int slot = (hash ^ hash >>> 16) & mask;
+            for (String s = table[slot]; s != null; s = table[slot]) {
+                if (s.hashCode() == hash && matches(s, input, from, to))
+                    return s;
+                slot = (slot + 1) & mask;
+            }
+
+            String s = input.substring(from, to);
+            if (s.length() != to - from || size == LIMIT)
+                return s;
+            table[slot] = s;
+            if (++size * 2 > table.length)
+                grow();
+            return s;
+        }
+
+        static boolean matches(String s, Source input, int from, int to) {
+            if (s.length() != to - from)
+                return false;
+            for (int i = 0; i < s.length(); i++)
+                if (s.charAt(i) != input.charAt(from + i))
+                    return false;
+            return true;
+        }
+
+        void grow() {
+            String[] old = table;
+            table = new String[old.length * 2];
+            int mask = table.length - 1;
+            for (String s : old) {
+                if (s == null)
+                    continue;
+                int slot = (s.hashCode() ^ s.hashCode() >>> 16) & mask;
+                while (table[slot] != null)
+                    slot = (slot + 1) & mask;
+                table[slot] = s;
+            }
+        }
+    }
+
+    // What one lexer counted since its last flush into LexerStats.TOTAL. The scan loop only
+    // bumps plain fields, which are merged under a lock every FLUSH_EVERY tokens and at the end.
+    static class Counts {
+        static final int FLUSH_EVERY = 4096;
+
+        final Tables tables;
+        // per token type id, the last slot for matches that emit no token
+        final long[] tokens;
+        final long[] chars;
+        // per lexer state, characters stepped and automaton states visited on them
+        final long[] steps;
+        final long[] states;
+        long maxLookahead;
+        long pushBacks;
+        long pushedBack;
+        long errors;
+        long errorChars;
+        long errorScanned;
+        int pending;
+
+        Counts(Tables tables) {
+            this.tables = tables;
+            tokens = new long[tables.tokenTypes.size() + 1];
+            chars = new long[tokens.length];
+            steps = new long[tables.automatons.size()];
+            states = new long[steps.length];
+        }
+
+        void step(int lexerState, int active) {
+            steps[lexerState]++;
+            states[lexerState] += active;
+        }
+
+        // count characters skipped at once by --runs, each in one accepting state
+        void run(int lexerState, int count) {
+            steps[lexerState] += count;
+            states[lexerState] += count;
+        }
+
+        // the scan from start to end picked action for the match up to last
+        void match(Action action, int start, int last, int end) {
+            int type = action.tokenTypeId;
+            if (!action.emits || last - action.pushBack <= start)
+                type = tokens.length - 1;
+            tokens[type]++;
+            chars[type] += end - start;
+            maxLookahead = Math.max(maxLookahead, end - last);
+            if (action.pushBack > 0 || action.reread) {
+                pushBacks++;
+                pushedBack += action.pushBack + (action.reread ? 1 : 0);
+            }
+            if (++pending == FLUSH_EVERY)
+                flush();
+        }
+
+        // the scan from start to end matched nothing, width characters are skipped
+        void error(int start, int end, int width) {
+            errors++;
+            errorChars += width;
+            errorScanned += end - start;
+            maxLookahead = Math.max(maxLookahead, end - start);
+            if (++pending == FLUSH_EVERY)
+                flush();
+        }
+
+        void flush() {
+            LexerStats.TOTAL.add(this);
+            Arrays.fill(tokens, 0);
+            Arrays.fill(chars, 0);
+            Arrays.fill(steps, 0);
+            Arrays.fill(states, 0);
+            maxLookahead = pushBacks = pushedBack = errors = errorChars = errorScanned = 0;
+            pending = 0;
+        }
+    }
+
+    // The counters of -Dla.counters over all lexers of this JVM, by token type and lexer state name.
+    // Registered as LA:type=LexerStats and printed to stderr at exit.
+    public interface LexerStatsMXBean {
+        // tokens per type, "-" for matches of rules that emit nothing
+        Map<String, Long> getTokensByType();
+
+        // characters stepped while scanning tokens of each type, lookahead and rescans included
+        Map<String, Long> getCharactersScannedByType();
+
+        Map<String, Long> getCharactersScannedByLexerState();
+
+        // automaton states visited per lexer state, one per character for DFA tables
+        Map<String, Long> getStatesVisitedByLexerState();
+
+        long getCharactersScanned();
+
+        // furthest a scan read past the end of the match it returned
+        long getMaxLookahead();
+
+        // matches with VRATI_SE and the characters they gave back
+        long getPushBacks();
+
+        long getPushedBackCharacters();
+
+        // unrecognized characters skipped by error recovery, more than one per skip for UTF-8 tables
+        long getErrorSkips();
+
+        long getErrorSkippedCharacters();
+
+        String dump();
+
+        void reset();
+    }
+
+    static class LexerStats implements LexerStatsMXBean {
+        static final LexerStats TOTAL = new LexerStats();
+
+        final TreeMap<String, Long> tokens = new TreeMap<>();
+        final TreeMap<String, Long> chars = new TreeMap<>();
+        final TreeMap<String, Long> steps = new TreeMap<>();
+        final TreeMap<String, Long> states = new TreeMap<>();
+        long maxLookahead;
+        long pushBacks;
+        long pushedBack;
+        long errors;
+        long errorChars;
+
+        static void install() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(TOTAL, new ObjectName("LA:type=LexerStats"));
+            } catch (JMException e) {
+                System.err.println("Could not register LexerStats: " + e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(TOTAL.dump())));
+        }
+
+        synchronized void add(Counts counts) {
+            List<String> types = counts.tables.tokenTypes;
+            for (int type = 0; type < counts.tokens.length; type++) {
+                String name = type < types.size() ? types.get(type) : "-";
+                if (counts.tokens[type] != 0)
+                    tokens.merge(name, counts.tokens[type], Long::sum);
+                if (counts.chars[type] != 0)
+                    chars.merge(name, counts.chars[type], Long::sum);
+            }
+            if (counts.errors != 0) {
+                tokens.merge("error", counts.errors, Long::sum);
+                chars.merge("error", counts.errorScanned, Long::sum);
+            }
+            for (int state = 0; state < counts.steps.length; state++) {
+                String name = counts.tables.automatons.get(state).name;
+                if (counts.steps[state] != 0) {
+                    steps.merge(name, counts.steps[state], Long::sum);
+                    states.merge(name, counts.states[state], Long::sum);
+                }
+            }
+            maxLookahead = Math.max(maxLookahead, counts.maxLookahead);
+            pushBacks += counts.pushBacks;
+            pushedBack += counts.pushedBack;
+            errors += counts.errors;
+            errorChars += counts.errorChars;
+        }
+
+        public synchronized Map<String, Long> getTokensByType() {
+            return new TreeMap<>(tokens);
+        }
+
+        public synchronized Map<String, Long> getCharactersScannedByType() {
+            return new TreeMap<>(chars);
+        }
+
+        public synchronized Map<String, Long> getCharactersScannedByLexerState() {
+            return new TreeMap<>(steps);
+        }
+
+        public synchronized Map<String, Long> getStatesVisitedByLexerState() {
+            return new TreeMap<>(states);
+        }
+
+        public synchronized long getCharactersScanned() {
+            long total = 0;
+            for (long count : steps.values())
+                total += count;
+            return total;
+        }
+
+        public synchronized long getMaxLookahead() {
+            return maxLookahead;
+        }
+
+        public synchronized long getPushBacks() {
+            return pushBacks;
+        }
+
+        public synchronized long getPushedBackCharacters() {
+            return pushedBack;
+        }
+
+        public synchronized long getErrorSkips() {
+            return errors;
+        }
+
+        public synchronized long getErrorSkippedCharacters() {
+            return errorChars;
+        }
+
+        // token types by characters scanned, most expensive first, then the lexer states
+        public synchronized String dump() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Lexer counters: %d characters scanned, max lookahead %d, %d push-backs (%d characters), %d error skips (%d characters)%n",
+                    getCharactersScanned(), maxLookahead, pushBacks, pushedBack, errors, errorChars));
+            sb.append(String.format("  %-24s %12s %14s%n", "token type", "tokens", "characters"));
+            ArrayList<String> types = new ArrayList<>(chars.keySet());
+            types.sort((x, y) -> Long.compare(chars.get(y), chars.get(x)));
+            for (String type : types)
+                sb.append(String.format("  %-24s %12d %14d%n", type, tokens.getOrDefault(type, 0L), chars.get(type)));
+            sb.append(String.format("  %-24s %12s %14s%n", "lexer state", "characters", "states visited"));
+            for (String state : steps.keySet())
+                sb.append(String.format("  %-24s %12d %14d%n", state, steps.get(state), states.get(state)));
+            return sb.toString();
+        }
+
+        public synchronized void reset() {
+            tokens.clear();
+            chars.clear();
+            steps.clear();
+            states.clear();
+            maxLookahead = pushBacks = pushedBack = errors = errorChars = 0;
+        }
+    }
+
+    // --binary-tokens output read by SA: the magic, the token type names, then one record per
+    // token with varint type id + 1, varint line delta and varint lexeme id. A lexeme id equal to
+    // the number of lexemes seen so far is followed by the new lexeme in UTF-8. Type 0 ends the stream.
+    static class TokenWriter {
+        static final int MAGIC = 0x4C41544B;
+
+        DataOutputStream out;
+        HashMap<String, Integer> lexemes = new HashMap<>();
+        int lastLine = 0;
+
+        TokenWriter(OutputStream os, List<String> types) {
+            out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                writeVarint(types.size());
+                for (String type : types)
+                    writeString(type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void write(int type, int line, String lexeme) {
+            try {
+                writeVarint(type + 1);
+                writeVarint(line - lastLine);
+                lastLine = line;
+                Integer id = lexemes.get(lexeme);
+                if (id != null) {
+                    writeVarint(id);
+                } else {
+                    writeVarint(lexemes.size());
+                    lexemes.put(lexeme, lexemes.size());
+                    writeString(lexeme);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void close() {
+            try {
+                writeVarint(0);
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    // the tables of the last loadFromFile or loadFromBinary, for main and LA/bench
+    static Tables tables;
+    // the lexer options of the command line
+    static Options options = new Options();
+    // --stream reads stdin through a ring buffer of --buffer=N characters instead of all at once
+    static boolean stream = false;
+    static int bufferSize = 1 << 16;
+    // --stats prints how many characters were scanned more than once
+    static boolean stats = false;
+    // --binary-tokens writes the token stream for SA in binary instead of text lines
+    static boolean binaryTokens = false;
+    static TokenWriter tokenWriter = null;
+    // -Dla.counters=true counts where scans spend their characters, see LexerStats. It is a
+    // static final so that with it off the JIT drops every counter update from the scan loops.
+    static final boolean COUNTERS = Boolean.getBoolean("la.counters");
+
+    static {
+        if (COUNTERS)
+            LexerStats.install();
+    }
+
+    public static void main(String[] args) throws IOException {
+        parseArgs(args);
+
+        // GLA --binary writes automats.bin next to automats.txt
+        if (new File("automats.bin").exists())
+            loadFromBinary("automats.bin");
+        else
+            loadFromFile("automats.txt");
+        if (binaryTokens)
+            tokenWriter = new TokenWriter(System.out, tables.tokenTypes);
+        Lexer lexer;
+        if (tables.utf8) {
+            lexer = new Lexer(tables, readInputBytes(), options);
+            print(lexer);
+        } else if (stream) {
+            lexer = new Lexer(tables, new StreamSource(Channels.newChannel(System.in), bufferSize), null, options);
+            print(lexer);
+        } else {
+            lexer = run(readInput());
+        }
+        if (tokenWriter != null)
+            tokenWriter.close();
+        if (stats)
+            System.err.println("Rescanned " + rescanned + " of " + scanned + " characters");
+        if (stats && lexer != null && lexer.sim instanceof LazyDfaSimulation lazy)
+            System.err.println("Lazy DFA: " + lazy.hits + " hits, " + lazy.misses + " misses, "
+                    + lazy.built + " states built, " + lazy.flushes + " flushes");
+    }
+
+    public static void parseArgs(String[] args) {
+        options = new Options(args);
+        for (String arg : args) {
+            if (arg.equals("--stream"))
+                stream = true;
+            else if (arg.startsWith("--buffer="))
+                bufferSize = Integer.parseInt(arg.substring("--buffer=".length()));
+            else if (arg.equals("--stats"))
+                stats = true;
+            else if (arg.equals("--binary-tokens"))
+                binaryTokens = true;
+        }
+    }
+
+    // Lexes an in-memory text with the tables already loaded and prints its tokens. Every call
+    // starts from fresh scan state, so LA/bench can run it many times in one JVM. Returns the
+    // lexer used, null when the text was lexed in parallel chunks.
+    public static Lexer run(String text) {
+        scanned = 0;
+        rescanned = 0;
+        if (options.threads > 1 && tables.deterministic() && !tables.utf8 && text.length() >= 2 * options.minChunk) {
+            analyzeParallel(text);
+            return null;
+        }
+        Lexer lexer = new Lexer(tables, text, options);
+        print(lexer);
+        return lexer;
+    }
+
+    public static String readInput() throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = br.readLine()) != null) {
+            sb.append(line);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    // stdin as raw UTF-8 with line ends normalized the way readInput does it
+    public static ByteBuffer readInputBytes() throws IOException {
+        byte[] bytes = System.in.readAllBytes();
+        int n = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            byte b = bytes[i];
+            if (b == '\r') {
+                b = '\n';
+                if (i + 1 < bytes.length && bytes[i + 1] == '\n')
+                    i++;
+            }
+            bytes[n++] = b;
+        }
+        if (n > 0 && bytes[n - 1] != '\n') {
+            if (n == bytes.length)
+                bytes = Arrays.copyOf(bytes, n + 1);
+            bytes[n++] = '\n';
+        }
+        return ByteBuffer.wrap(bytes, 0, n);
+    }
+
+    // characters scanned by the last run and how many of them more than once, for --stats
+    static long scanned = 0;
+    static long rescanned = 0;
+
+    // Prints every token of lexer to stdout and every unrecognized character to stderr
+    static void print(Lexer lexer) {
+        for (Token token = lexer.nextToken(); token != null; token = lexer.nextToken()) {
+            if (token.type == null)
+                printError(token, lexer.input.charOffset(token.offset));
+            else
+                emitToken(lexer.lines, token);
+        }
+        scanned = lexer.scanned;
+        rescanned = lexer.rescanned;
+    }
+
+    // The memo keys a lexer state by 8 bits and a DFA state by 24, tables with more states are
+    // lexed without it
+    static boolean memoFits(List<Automaton> automatons) {
+        boolean fits = automatons.size() <= 1 << 8;
+        if (!fits)
+            System.err.println("Too many lexer states to remember dead ends, scans after errors may repeat");
+        for (Automaton auto : automatons)
+            if (auto.deterministic && auto.numStates > 1 << 24) {
+                System.err.println("The tables of " + auto.name + " have too many states to remember dead ends, "
+                        + "scans after errors may repeat");
+                fits = false;
+            }
+        return fits;
+    }
+
+    // Splits a large input at newlines and lexes the pieces on a ForkJoinPool, each guessing that
+    // it starts in the initial lexer state. Chunks are then checked in order: a chunk whose
+    // predecessor did not stop exactly at its start in the initial state is lexed again from
+    // where the predecessor stopped, so the output is the same as a single Lexer gives.
+    public static void analyzeParallel(String text) {
+        StringSource source = new StringSource(text);
+        char[] chars = options.runScanner != null ? text.toCharArray() : null;
+        LineIndex lines = new LineIndex();
+        for (int i = 0; i < text.length(); i++)
+            if (text.charAt(i) == '\n')
+                lines.add(i + 1);
+
+        int count = Math.max(1, Math.min(options.threads * 4, text.length() / options.minChunk));
+        ArrayList<ChunkLexer> chunks = new ArrayList<>();
+        int from = 0;
+        for (int k = 1; k <= count; k++) {
+            int limit = k == count ? text.length() : (int) ((long) text.length() * k / count);
+            int newline = text.indexOf('\n', limit);
+            limit = k == count || newline == -1 ? text.length() : newline + 1;
+            if (limit <= from)
+                continue;
+            chunks.add(new ChunkLexer(tables, options, source, chars, lines, from, limit));
+            from = limit;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(options.threads);
+        try {
+            ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (ChunkLexer chunk : chunks)
+                tasks.add(pool.submit(chunk::run));
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } finally {
+            pool.shutdown();
+        }
+
+        ChunkLexer previous = null;
+        for (ChunkLexer chunk : chunks) {
+            if (previous != null) {
+                if (previous.endOfInput) {
+                    // the input ended inside an unfinished token, nothing after it is lexed
+                    chunk.tokens.clear();
+                    chunk.endOfInput = true;
+                } else if (previous.lexer.start != chunk.from || previous.lexer.lexerState != 0) {
+                    chunk.restart(previous.lexer.start, previous.lexer.lexerState);
+                }
+            }
+            for (Token token : chunk.tokens) {
+                if (token.type == null)
+                    printError(token, token.offset);
+                else
+                    emitToken(lines, token);
+            }
+            scanned += chunk.lexer.scanned - chunk.runFrom;
+            rescanned += chunk.lexer.rescanned;
+            previous = chunk;
+        }
+    }
+
+    static Simulation createSimulation(Tables tables, Lexer lexer) {
+        Options options = lexer.options;
+        if (tables.deterministic())
+            return options.compileLimit > 0 ? new CompiledDfaSimulation(tables, options.compileLimit) : new DfaSimulation(tables);
+        if (options.simulation.equals("set"))
+            return new NfaSimulation(tables);
+        if (options.simulation.equals("lazy"))
+            return new LazyDfaSimulation(tables, lexer);
+        return new BitsetNfaSimulation(tables);
+    }
+
+    // position is in chars; a character outside the BMP read from UTF-8 is reported per surrogate,
+    // the same as when it is read as chars
+    static void printError(Token error, int position) {
+        String text = error.text();
+        for (int i = 0; i < text.length(); i++)
+            System.err.println("Error: unrecognized symbol '" + text.charAt(i) + "' at position " + (position + i));
+    }
+
+    static void emitToken(LineIndex lines, Token token) {
+        String text = token.text();
+        if (lines.line(token.offset + token.length - 1) != token.line)
+            text = text.replace("\n", "");
+        if (tokenWriter != null)
+            tokenWriter.write(token.typeId, token.line, text.trim());
+        else
+            System.out.println(token.type + " " + token.line + " " + text.trim());
+    }
+
+    static ArrayList<String> actionList(String text) {
+        ArrayList<String> actions = new ArrayList<>();
+        for (String s : text.trim().split(",\\s*"))
+            if (!s.isEmpty()) actions.add(s);
+        return actions;
+    }
+
+    // Loads automats.txt into LA.tables for main and LA/bench
+    public static Tables loadFromFile(String filename) {
+        tables = Tables.fromText(filename);
+        return tables;
+    }
+
+    public static Tables loadFromBinary(String filename) throws IOException {
+        tables = Tables.fromBinary(filename);
+        return tables;
+    }
+
+    static final int TABLE_MAGIC = 0x4C415442;
+    static final int TABLE_VERSION = 7;
+
+    // The state of one load, turned into a Tables at its end. Every load starts from a fresh
+    // TableLoader, so tables can be loaded on several threads at once and earlier Tables are
+    // never touched.
+    static class TableLoader {
+        final LinkedHashMap<State, ArrayList<String>> stateToActions = new LinkedHashMap<>();
+        // emitted token types, the %L list first and then any other type in order of appearance,
+        // indexed by Action.tokenTypeId
+        final ArrayList<String> tokenTypes = new ArrayList<>();
+        final HashMap<String, Integer> tokenTypeIds = new HashMap<>();
+        final ArrayList<Automaton> automatons = new ArrayList<>();
+        final HashMap<String, Integer> automatonIndex = new HashMap<>();
+        // Character classes of the deterministic tables, class 0 has no edges
+        char[] classMap;
+        int numClasses;
+        // tables over the UTF-8 bytes of the input instead of its chars (GLA --utf8)
+        boolean utf8;
+
+        // Compiles the action strings of every accepting state, in stateToActions order,
+        // so token emission never has to look at the strings again
+        void compileActions() {
+            int priority = 0;
+            for (Map.Entry<State, ArrayList<String>> entry : stateToActions.entrySet()) {
+                State state = automatons.get(entry.getKey().automaton).accept[entry.getKey().id];
+                state.action = new Action(entry.getValue(), priority++, this);
+            }
+            for (Automaton auto : automatons)
+                for (Keywords keywords : auto.keywords) {
+                    keywords.actions = new Action[keywords.words.length];
+                    for (int i = 0; i < keywords.words.length; i++)
+                        keywords.actions[i] = new Action(keywords.actionLists.get(i), priority++, this);
+                    for (Map.Entry<Integer, ArrayList<String>> entry : auto.acceptable.entrySet())
+                        if (entry.getValue().equals(keywords.base))
+                            auto.accept[entry.getKey()].action.keywords = keywords;
+                }
+        }
+
+        Tables readText(String filename) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+                Automaton current = null;
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) continue;
+
+                    if (line.startsWith("Tokens:")) {
+                        for (String type : line.substring("Tokens:".length()).trim().split("\\s+"))
+                            if (!type.isEmpty() && !tokenTypeIds.containsKey(type)) {
+                                tokenTypeIds.put(type, tokenTypes.size());
+                                tokenTypes.add(type);
+                            }
+
+                    } else if (line.startsWith("Encoding:")) {
+                        utf8 = line.substring("Encoding:".length()).trim().equals("UTF-8");
+
+                    } else if (line.startsWith("Classes:")) {
+                        numClasses = Integer.parseInt(line.substring("Classes:".length()).trim());
+                        classMap = new char[Character.MAX_VALUE + 1];
+                        while ((line = reader.readLine()) != null && !line.equals("-----")) {
+                            String[] parts = line.trim().split(":?\\s+");
+                            char c = (char) Integer.parseInt(parts[0]);
+                            for (int i = 1; i < parts.length; i++) {
+                                int dash = parts[i].indexOf('-');
+                                if (dash < 0)
+                                    classMap[Integer.parseInt(parts[i])] = c;
+                                else
+                                    Arrays.fill(classMap, Integer.parseInt(parts[i].substring(0, dash)),
+                                            Integer.parseInt(parts[i].substring(dash + 1)) + 1, c);
+                            }
+                        }
+
+                    } else if (line.startsWith("Automat:")) {
+                        current = new Automaton();
+                        current.name = line.substring("Automat:".length()).trim();
+                        automatons.add(current);
+                        current.index = automatons.size() - 1;
+                        automatonIndex.put(current.name, current.index);
+
+                    } else if (line.equals("Deterministic")) {
+                        if (current != null)
+                            current.deterministic = true;
+
+                    } else if (line.startsWith("Acceptable:")) {
+                        while ((line = reader.readLine()) != null && !line.startsWith("Transitions:") && !line.startsWith("Table:")
+                                && !line.startsWith("Runs:") && !line.startsWith("Keywords:")) {
+                            line = line.trim();
+                            if (line.isEmpty()) continue;
+
+                            if (!line.contains(":")) continue;
+
+                            String[] parts = line.split(":", 2);
+                            if (parts.length < 2) continue;
+
+                            String left = parts[0].trim();
+                            if (left.isEmpty()) continue;
+
+                            int stateNum = Integer.parseInt(left);
+
+                            State state = new State(current, stateNum);
+                            ArrayList<String> actions = actionList(parts[1]);
+                            stateToActions.put(state, actions);
+                            current.acceptable.put(stateNum, actions);
+                        }
+
+                        // "Keywords: base actions", "Seeds: ...", then "word: actions" in slot order
+                        while (line != null && line.startsWith("Keywords:")) {
+                            ArrayList<String> base = actionList(line.substring("Keywords:".length()));
+                            String[] seedParts = reader.readLine().trim().substring("Seeds:".length()).trim().split("\\s+");
+                            int[] seeds = new int[seedParts.length];
+                            for (int i = 0; i < seeds.length; i++)
+                                seeds[i] = Integer.parseInt(seedParts[i]);
+                            ArrayList<String> words = new ArrayList<>();
+                            ArrayList<ArrayList<String>> actionLists = new ArrayList<>();
+                            while ((line = reader.readLine()) != null && !line.equals("-----")) {
+                                String[] parts = line.split(":", 2);
+                                words.add(parts[0].trim());
+                                actionLists.add(actionList(parts[1]));
+                            }
+                            current.keywords.add(new Keywords(base, words.toArray(new String[0]), actionLists, seeds));
+                            line = reader.readLine();
+                        }
+
+                        // self-loop ranges of deterministic states, "state: lo-hi lo-hi"
+                        HashMap<Integer, char[]> runs = new HashMap<>();
+                        if (line != null && line.startsWith("Runs:")) {
+                            while ((line = reader.readLine()) != null && !line.equals("-----")) {
+                                String[] parts = line.trim().split(":?\\s+");
+                                char[] ranges = new char[2 * (parts.length - 1)];
+                                for (int i = 1; i < parts.length; i++) {
+                                    String[] bounds = parts[i].split("-");
+                                    ranges[2 * i - 2] = (char) Integer.parseInt(bounds[0]);
+                                    ranges[2 * i - 1] = (char) Integer.parseInt(bounds[1]);
+                                }
+                                runs.put(Integer.parseInt(parts[0]), ranges);
+                            }
+                            line = reader.readLine();
+                        }
+
+                        // deterministic automata: one row of targets per state, one column per class
+                        if (line != null && line.startsWith("Table:")) {
+                            ArrayList<String[]> rows = new ArrayList<>();
+                            while ((line = reader.readLine()) != null && !line.equals("-----"))
+                                rows.add(line.trim().split(":?\\s+"));
+                            current.numStates = rows.size();
+                            current.delta = new int[rows.size() * numClasses];
+                            for (String[] row : rows) {
+                                int from = Integer.parseInt(row[0]);
+                                for (int c = 0; c < numClasses; c++)
+                                    current.delta[from * numClasses + c] = Integer.parseInt(row[c + 1]);
+                            }
+                            if (!runs.isEmpty()) {
+                                current.runs = new char[current.numStates][];
+                                for (Map.Entry<Integer, char[]> run : runs.entrySet())
+                                    current.runs[run.getKey()] = run.getValue();
+                            }
+                            current = null;
+                        }
+                    } else if (line.matches("\\d+ --.+--> \\d+")) {
+                        if (current != null) {
+                            String[] parts = line.split(" ");
+                            int from = Integer.parseInt(parts[0]);
+                            String sym = parts[1].substring(2, parts[1].length() - 3);
+                            char symbol;
+                            char last = 0;
+                            if (sym.length() > 2 && sym.startsWith("[") && sym.endsWith("]")) {
+                                // range edge, written as [lo-hi] in char codes
+                                int dash = sym.indexOf('-');
+                                symbol = (char) Integer.parseInt(sym.substring(1, dash));
+                                last = (char) Integer.parseInt(sym.substring(dash + 1, sym.length() - 1));
+                            } else if (sym.equals("$")) symbol = '$';
+                            else if (sym.equals("\\n")) symbol = '\n';
+                            else if (sym.equals("\\t")) symbol = '\t';
+                            else if (sym.equals("\\_")) symbol = ' ';
+                            else symbol = sym.charAt(0);
+                            int to = Integer.parseInt(parts[2]);
+                            current.transitions.add(new Transition(from, to, symbol, last == 0 ? symbol : last));
+                        }
+
+                    } else if (line.equals("-----")) {
+                        current = null;
+                    }
+                }
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            for (Automaton auto : automatons)
+                if (auto.deterministic)
+                    auto.buildAccept();
+                else
+                    auto.buildTables();
+            compileActions();
+            return new Tables(this);
+        }
+
+        // Maps the table written by GLA.writeBinary and copies its arrays in bulk,
+        // edges are never turned into Transition objects
+        Tables readBinary(String filename) throws IOException {
+            try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buf.getInt() != TABLE_MAGIC || buf.getInt() != TABLE_VERSION)
+                    throw new IOException(filename + " is not a lexer table of version " + TABLE_VERSION);
+
+                String[] strings = new String[buf.getInt()];
+                for (int i = 0; i < strings.length; i++) {
+                    byte[] bytes = new byte[buf.getInt()];
+                    buf.get(bytes);
+                    strings[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+
+                ArrayList<ArrayList<String>> actionLists = new ArrayList<>();
+                int listCount = buf.getInt();
+                for (int i = 0; i < listCount; i++) {
+                    ArrayList<String> actions = new ArrayList<>();
+                    int size = buf.getInt();
+                    for (int j = 0; j < size; j++)
+                        actions.add(strings[buf.getInt()]);
+                    actionLists.add(actions);
+                }
+
+                int typeCount = buf.getInt();
+                for (int i = 0; i < typeCount; i++) {
+                    String type = strings[buf.getInt()];
+                    if (!tokenTypeIds.containsKey(type)) {
+                        tokenTypeIds.put(type, tokenTypes.size());
+                        tokenTypes.add(type);
+                    }
+                }
+                utf8 = buf.getInt() == 1;
+
+                numClasses = buf.getInt();
+                classMap = new char[Character.MAX_VALUE + 1];
+                int classRanges = buf.getInt();
+                for (int i = 0; i < classRanges; i++) {
+                    int lo = buf.getInt();
+                    int hi = buf.getInt();
+                    Arrays.fill(classMap, lo, hi + 1, (char) buf.getInt());
+                }
+
+                int automatonCount = buf.getInt();
+                for (int i = 0; i < automatonCount; i++) {
+                    Automaton auto = new Automaton();
+                    auto.name = strings[buf.getInt()];
+                    auto.deterministic = true;
+                    auto.numStates = buf.getInt();
+                    auto.index = automatons.size();
+                    automatonIndex.put(auto.name, auto.index);
+
+                    auto.delta = new int[auto.numStates * numClasses];
+                    buf.asIntBuffer().get(auto.delta);
+                    buf.position(buf.position() + 4 * auto.delta.length);
+
+                    int[] acceptAction = new int[auto.numStates];
+                    buf.asIntBuffer().get(acceptAction);
+                    buf.position(buf.position() + 4 * auto.numStates);
+                    for (int s = 0; s < auto.numStates; s++) {
+                        if (acceptAction[s] == -1) continue;
+                        State state = new State(auto, s);
+                        stateToActions.put(state, actionLists.get(acceptAction[s]));
+                        auto.acceptable.put(s, actionLists.get(acceptAction[s]));
+                    }
+                    auto.buildAccept();
+
+                    int runCount = buf.getInt();
+                    if (runCount > 0)
+                        auto.runs = new char[auto.numStates][];
+                    for (int r = 0; r < runCount; r++) {
+                        int state = buf.getInt();
+                        char[] ranges = new char[2 * buf.getInt()];
+                        for (int j = 0; j < ranges.length; j++)
+                            ranges[j] = (char) buf.getInt();
+                        auto.runs[state] = ranges;
+                    }
+
+                    int keywordTables = buf.getInt();
+                    for (int k = 0; k < keywordTables; k++) {
+                        ArrayList<String> base = actionLists.get(buf.getInt());
+                        int n = buf.getInt();
+                        int[] seeds = new int[n];
+                        for (int j = 0; j < n; j++)
+                            seeds[j] = buf.getInt();
+                        String[] words = new String[n];
+                        ArrayList<ArrayList<String>> wordActions = new ArrayList<>();
+                        for (int j = 0; j < n; j++) {
+                            words[j] = strings[buf.getInt()];
+                            wordActions.add(actionLists.get(buf.getInt()));
+                        }
+                        auto.keywords.add(new Keywords(base, words, wordActions, seeds));
+                    }
+                    automatons.add(auto);
+                }
+            }
+            compileActions();
+            return new Tables(this);
         }
     }
 }
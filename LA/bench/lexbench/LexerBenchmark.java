@@ -0,0 +1,261 @@
+package lexbench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// LA throughput per table-driven mode, for hard numbers before and after a lexer change.
+// The bytes and tokens counters are reported per second, i.e. as B/s and tokens/s, and
+// -prof gc adds the allocation rate and bytes allocated per lexed corpus.
+//
+// JMH does not accept benchmarks in the default package, so LA and GeneratedLexer are driven
+// through reflection. Needs jmh-core and jmh-generator-annprocess in $JMH. From LA/, with the
+// spec in $SPEC:
+//   java -cp . GLA --no-cache --java < $SPEC                 # DFA tables and GeneratedLexer
+//   javac -d analizator analizator/*.java
+//   javac --add-modules jdk.incubator.vector -cp analizator -d analizator vector/VectorRunScanner.java
+//   mkdir -p bench/nfa/analizator && (cd bench/nfa && java -cp ../.. GLA --nfa --no-cache < $SPEC)
+//   javac -cp analizator:$JMH -d bench/classes bench/lexbench/LexerBenchmark.java
+//   java -cp analizator:bench/classes:$JMH org.openjdk.jmh.Main lexbench -prof gc \
+//       -jvmArgsAppend "--add-modules jdk.incubator.vector"
+// Where the Vector API is missing, list the other modes with -p mode=dfa,runs-scalar,... instead.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+
+    // nfa: NFA tables with HashSet<State> simulation (--sim=set)
+    // indexed-nfa: NFA tables with precomputed adjacency and bitset closures (--sim=bitset)
+    // lazy-dfa: DFA states built from the NFA tables on demand (--sim=lazy)
+    // dfa: deterministic tables interpreted per character
+    // compiled: deterministic tables compiled to bytecode at startup (--compile-limit)
+    // generated: GeneratedLexer from GLA --java
+    // runs-scalar, runs-vector: dfa skipping self-loop runs (--runs=scalar, --runs=vector), which
+    // pays off mostly on the comments corpus, where long comment bodies are one run
+    @Param({"nfa", "indexed-nfa", "lazy-dfa", "dfa", "compiled", "generated", "runs-scalar", "runs-vector"})
+    public String mode;
+
+    // gk: every GK/tests/*/test.c program, the rest are synthetic sources of about size chars
+    @Param({"gk", "nesting", "comments", "identifiers", "strings"})
+    public String corpus;
+
+    @Param("1048576")
+    public int size;
+
+    @Param("../GK/tests")
+    public String gkTests;
+
+    @Param("analizator/automats.txt")
+    public String dfaTables;
+
+    @Param("bench/nfa/analizator/automats.txt")
+    public String nfaTables;
+
+    String text;
+    long tokenCount;
+    Method lex;
+    PrintWriter sink;
+    PrintStream discard;
+    PrintStream stdout;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long bytes;
+        public long tokens;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        text = corpus.equals("gk") ? readGkTests(Paths.get(gkTests)) : Corpus.generate(corpus, size, 19);
+        stdout = System.out;
+
+        if (mode.equals("generated")) {
+            lex = Class.forName("GeneratedLexer").getMethod("lex", String.class, PrintWriter.class);
+        } else {
+            boolean nfa = mode.endsWith("nfa") || mode.equals("lazy-dfa");
+            Path tables = Paths.get(nfa ? nfaTables : dfaTables);
+            if (Files.readString(tables).contains("\nDeterministic\n") == nfa)
+                throw new IllegalStateException(tables + " does not hold " + (nfa ? "NFA" : "DFA") + " tables");
+            String[] args = switch (mode) {
+                case "nfa" -> new String[]{"--sim=set"};
+                case "indexed-nfa" -> new String[]{"--sim=bitset"};
+                case "lazy-dfa" -> new String[]{"--sim=lazy"};
+                case "compiled" -> new String[]{"--compile-limit=" + Integer.MAX_VALUE, "--threads=1"};
+                case "runs-scalar" -> new String[]{"--compile-limit=0", "--runs=scalar", "--threads=1"};
+                case "runs-vector" -> new String[]{"--compile-limit=0", "--runs=vector", "--threads=1"};
+                default -> new String[]{"--compile-limit=0", "--threads=1"};
+            };
+            // LA falls back to the scalar scanner without a word, which would mislabel the numbers
+            if (mode.equals("runs-vector"))
+                Class.forName("VectorRunScanner");
+            Class<?> la = Class.forName("LA");
+            la.getMethod("parseArgs", String[].class).invoke(null, (Object) args);
+            la.getMethod("loadFromFile", String.class).invoke(null, tables.toString());
+            lex = la.getMethod("run", String.class);
+        }
+
+        // one counted run up front, LA prints one line per token
+        LineCounter counter = new LineCounter();
+        sink = new PrintWriter(counter);
+        invoke(new PrintStream(counter, false));
+        tokenCount = counter.lines;
+        if (tokenCount == 0)
+            throw new IllegalStateException("no tokens in corpus " + corpus);
+        sink = new PrintWriter(OutputStream.nullOutputStream());
+        discard = new PrintStream(OutputStream.nullOutputStream(), false);
+    }
+
+    @TearDown(Level.Trial)
+    public void restore() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void lex(Counters counters) throws Exception {
+        invoke(discard);
+        counters.bytes += text.length();
+        counters.tokens += tokenCount;
+    }
+
+    void invoke(PrintStream out) throws Exception {
+        if (mode.equals("generated")) {
+            lex.invoke(null, text, sink);
+            return;
+        }
+        System.setOut(out);
+        lex.invoke(null, text);
+        out.flush();
+    }
+
+    static String readGkTests(Path dir) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (DirectoryStream<Path> tests = Files.newDirectoryStream(dir)) {
+            ArrayList<Path> sorted = new ArrayList<>();
+            tests.forEach(sorted::add);
+            Collections.sort(sorted);
+            for (Path test : sorted) {
+                Path source = test.resolve("test.c");
+                if (Files.exists(source))
+                    sb.append(Files.readString(source)).append('\n');
+            }
+        }
+        if (sb.length() == 0)
+            throw new FileNotFoundException("no test.c under " + dir);
+        return sb.toString();
+    }
+
+    // counts '\n' bytes written to it
+    static class LineCounter extends OutputStream {
+        long lines;
+
+        public void write(int b) {
+            if (b == '\n')
+                lines++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++)
+                if (b[i] == '\n')
+                    lines++;
+        }
+    }
+
+    // Synthetic C sources in the ppjC subset, the same text for the same kind, size and seed
+    static class Corpus {
+        static final String[] TYPES = {"int", "char", "const int"};
+
+        static String generate(String kind, int size, long seed) {
+            Random random = new Random(seed);
+            StringBuilder sb = new StringBuilder(size + 1024);
+            int function = 0;
+            while (sb.length() < size) {
+                sb.append("int f").append(function++).append("(int a, char b) {\n");
+                switch (kind) {
+                    case "nesting" -> nesting(sb, random, 1, 24 + random.nextInt(40));
+                    case "comments" -> comments(sb, random);
+                    case "identifiers" -> identifiers(sb, random);
+                    case "strings" -> strings(sb, random);
+                    default -> throw new IllegalArgumentException("unknown corpus " + kind);
+                }
+                sb.append("    return a;\n}\n\n");
+            }
+            return sb.toString();
+        }
+
+        // blocks of if/while/for nested depth levels deep
+        static void nesting(StringBuilder sb, Random random, int depth, int max) {
+            String indent = "    ".repeat(depth);
+            if (depth == max) {
+                sb.append(indent).append("a = (a + ").append(random.nextInt(100)).append(") * b;\n");
+                return;
+            }
+            switch (random.nextInt(3)) {
+                case 0 -> sb.append(indent).append("if (a < ").append(random.nextInt(1000)).append(" && b != 0) {\n");
+                case 1 -> sb.append(indent).append("while (a >= ").append(random.nextInt(1000)).append(") {\n");
+                default -> sb.append(indent).append("for (a = 0; a < b; a++) {\n");
+            }
+            nesting(sb, random, depth + 1, max);
+            sb.append(indent).append("}\n");
+        }
+
+        // block comments of hundreds of words and line comments between short statements
+        static void comments(StringBuilder sb, Random random) {
+            for (int k = 0; k < 8; k++) {
+                sb.append("    /*");
+                for (int w = 200 + random.nextInt(400); w > 0; w--) {
+                    sb.append(' ').append(word(random));
+                    if (w % 12 == 0)
+                        sb.append("\n     *");
+                }
+                sb.append(" */\n");
+                sb.append("    a = a + ").append(random.nextInt(10)).append("; // ").append(word(random)).append(' ').append(word(random)).append('\n');
+            }
+        }
+
+        // declarations and expressions over thousands of distinct names
+        static void identifiers(StringBuilder sb, Random random) {
+            for (int k = 0; k < 64; k++) {
+                sb.append("    ").append(TYPES[random.nextInt(TYPES.length)]).append(' ').append(name(random)).append(" = ")
+                        .append(name(random)).append(" + ").append(name(random)).append(" * ").append(name(random)).append(";\n");
+                sb.append("    ").append(name(random)).append('(').append(name(random)).append(", ").append(name(random)).append(");\n");
+            }
+        }
+
+        // string literals with escapes and character constants
+        static void strings(StringBuilder sb, Random random) {
+            for (int k = 0; k < 32; k++) {
+                sb.append("    char s").append(k).append("[] = \"");
+                for (int w = 4 + random.nextInt(24); w > 0; w--) {
+                    sb.append(word(random));
+                    sb.append(switch (random.nextInt(6)) {
+                        case 0 -> "\\n";
+                        case 1 -> "\\t";
+                        case 2 -> "\\\"";
+                        default -> " ";
+                    });
+                }
+                sb.append("\";\n");
+                sb.append("    b = '").append((char) ('a' + random.nextInt(26))).append("'; b = '\\n'; b = '\\'';\n");
+            }
+        }
+
+        static String word(Random random) {
+            StringBuilder w = new StringBuilder();
+            for (int i = 2 + random.nextInt(8); i > 0; i--)
+                w.append((char) ('a' + random.nextInt(26)));
+            return w.toString();
+        }
+
+        static String name(Random random) {
+            return word(random) + "_" + random.nextInt(5000);
+        }
+    }
+}
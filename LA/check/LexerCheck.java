@@ -0,0 +1,119 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Regression check for LA: lexes every GK/tests/*/test.c program, and all of them as one input,
+// with the sequential lexer and again in parallel chunks, and reports every output that differs.
+// Chunks are kept small so that most of them are cut inside a comment or string and lexed again.
+// Given the tables of GLA --keep-keywords as well, it also checks that the keyword hash gives the
+// same output as keywords in the automaton. When GeneratedLexer of GLA --java is on the classpath,
+// it checks that it prints the same as LA too. From LA/, with the spec in $SPEC:
+//   java -cp . GLA --no-cache --java < $SPEC
+//   mkdir -p check/keep/analizator && (cd check/keep && java -cp ../.. GLA --no-cache --keep-keywords < $SPEC)
+//   javac -d analizator analizator/LA.java analizator/GeneratedLexer.java
+//   javac -cp analizator -d check/classes check/LexerCheck.java
+//   java -cp analizator:check/classes LexerCheck analizator/automats.txt ../GK/tests check/keep/analizator/automats.txt
+public class LexerCheck {
+    static final String[] PARALLEL = {"--threads=4", "--min-chunk=16"};
+
+    public static void main(String[] args) throws IOException {
+        LA.Tables tables = LA.Tables.fromText(args[0]);
+        TreeMap<String, String> inputs = readInputs(Paths.get(args[1]));
+        LA.Tables keepKeywords = args.length > 2 ? LA.Tables.fromText(args[2]) : null;
+        Method generated = generatedLexer();
+
+        int checked = 0;
+        int failed = 0;
+        for (Map.Entry<String, String> input : inputs.entrySet()) {
+            String expected = lex(tables, input.getValue(), "--threads=1");
+            if (!lex(tables, input.getValue(), PARALLEL).equals(expected)) {
+                System.out.println("DIFF " + input.getKey() + " " + String.join(" ", PARALLEL));
+                failed++;
+            }
+            if (keepKeywords != null && !lex(keepKeywords, input.getValue(), "--threads=1").equals(expected)) {
+                System.out.println("DIFF " + input.getKey() + " --keep-keywords");
+                failed++;
+            }
+            if (generated != null && !lexGenerated(generated, input.getValue()).equals(expected)) {
+                System.out.println("DIFF " + input.getKey() + " GeneratedLexer");
+                failed++;
+            }
+            checked++;
+        }
+        System.out.println(checked + " inputs checked, " + failed + " differ");
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    // every test.c under dir, read the way LA.readInput reads stdin, "all" for all of them,
+    // "commented" for all of them with a copy of each in a block comment and "dollars" for all of
+    // them with a '$' after every letter. The programs have no comments of their own, so only
+    // "commented" makes chunks start inside a token. An input '$' walks epsilon edges, which the
+    // keyword hash has to match.
+    static TreeMap<String, String> readInputs(Path dir) throws IOException {
+        TreeMap<String, String> inputs = new TreeMap<>();
+        try (DirectoryStream<Path> tests = Files.newDirectoryStream(dir)) {
+            for (Path test : tests) {
+                Path source = test.resolve("test.c");
+                if (!Files.exists(source))
+                    continue;
+                StringBuilder sb = new StringBuilder();
+                for (String line : Files.readAllLines(source))
+                    sb.append(line).append('\n');
+                inputs.put(test.getFileName().toString(), sb.toString());
+            }
+        }
+        StringBuilder commented = new StringBuilder();
+        for (String program : inputs.values())
+            commented.append(program).append("/*\n").append(program).append("*/\n");
+        inputs.put("all", String.join("", inputs.values()));
+        inputs.put("commented", commented.toString());
+        inputs.put("dollars", inputs.get("all").replaceAll("([A-Za-z])", "$1\\$"));
+        return inputs;
+    }
+
+    // what LA prints to stdout and stderr for text with the given options
+    static String lex(LA.Tables tables, String text, String... options) {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream tokens = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(tokens, true));
+            System.setErr(new PrintStream(errors, true));
+            LA.tables = tables;
+            LA.options = new LA.Options(options);
+            LA.run(text);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        return tokens + "\n--- stderr\n" + errors;
+    }
+
+    // GeneratedLexer.lex(String, PrintWriter), or null when it was not generated
+    static Method generatedLexer() {
+        try {
+            return Class.forName("GeneratedLexer").getMethod("lex", String.class, PrintWriter.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // what GeneratedLexer prints to stdout and stderr for text
+    static String lexGenerated(Method lex, String text) {
+        PrintStream err = System.err;
+        StringWriter tokens = new StringWriter();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        try {
+            System.setErr(new PrintStream(errors, true));
+            lex.invoke(null, text, new PrintWriter(tokens));
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        } finally {
+            System.setErr(err);
+        }
+        return tokens + "\n--- stderr\n" + errors;
+    }
+}
@@ -0,0 +1,28 @@
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Run skipping for LA --runs=vector. It needs the incubator module, so it is kept out of
+// analizator/ and compiled against LA on its own:
+//   javac --add-modules jdk.incubator.vector -cp analizator -d analizator vector/VectorRunScanner.java
+//   java --add-modules jdk.incubator.vector -cp . LA --runs=vector
+public class VectorRunScanner implements LA.RunScanner {
+    static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    static final LA.RunScanner TAIL = new LA.ScalarRunScanner();
+
+    public int skip(char[] text, int from, int to, char[] ranges) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            ShortVector v = ShortVector.fromCharArray(SPECIES, text, i);
+            // c in [lo, hi] is c - lo <= hi - lo unsigned
+            VectorMask<Short> in = SPECIES.maskAll(false);
+            for (int r = 0; r < ranges.length; r += 2)
+                in = in.or(v.sub((short) ranges[r]).compare(VectorOperators.UNSIGNED_LE, (short) (ranges[r + 1] - ranges[r])));
+            if (!in.allTrue())
+                return i + in.not().firstTrue();
+        }
+        return TAIL.skip(text, i, to, ranges);
+    }
+}
@@ -508,7 +508,6 @@ public class GSA {
         // get all transition symbols
         Set<String> alphabet = new HashSet<>();
         Map<State, Map<String, Set<State>>> outgoing = new HashMap<>();
-        Set<String> alphabet = new HashSet<>();
         for (NFATransition t : nka.transitions) {
             if (!t.transSymb.equals("$")) {
                 alphabet.add(t.transSymb);
@@ -751,7 +750,23 @@ public class GSA {
     }
 
     public static void main(String[] args) {
+        TableCache cache = TableCache.fromArgs(args, "gsa");
+        String key = null;
         try {
+            // the grammar is hashed without its empty lines, which the parser skips
+            byte[] grammar = System.in.readAllBytes();
+            if (cache != null) {
+                StringBuilder normalized = new StringBuilder();
+                for (String line : new String(grammar, java.nio.charset.StandardCharsets.UTF_8).split("\\R"))
+                    if (!line.isEmpty())
+                        normalized.append(line).append('\n');
+                key = TableCache.key(TableCache.generatorVersion(GSA.class), normalized.toString());
+                if (cache.restore(key, new File("./analizator"))) {
+                    System.err.println("Grammar unchanged, tables reused from " + new File(cache.dir, key));
+                    return;
+                }
+            }
+            System.setIn(new ByteArrayInputStream(grammar));
             ParseInput();
         }
         catch (IOException e) {
@@ -763,5 +778,7 @@ public class GSA {
         DFA dfa = NFAtoDFA(nfa);
         createTables(dfa);
 
+        if (cache != null)
+            cache.store(key, new File("./analizator"), "Actions.txt", "NewStates.txt");
     }
 }
@@ -1,9 +1,13 @@
 package SA.analizator;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class SA {
@@ -178,17 +182,32 @@ public class SA {
 
     static HashMap<Integer, Node> terminalToNode= new HashMap<>();
     static ArrayList<String> input = new ArrayList<>();
+    // LA --binary-tokens starts its output with this magic, see LA.TokenWriter
+    static final int TOKEN_MAGIC = 0x4C41544B;
+
     private static void readInput(){
-        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+        BufferedInputStream in = new BufferedInputStream(System.in, 1 << 16);
 
-        String line;
         try {
-            int i = 0;
-            while ((line = br.readLine()) != null) {
-                String [] tokens = line.split(" ");
-                Node temp = new Node(tokens[0], line);
-                terminalToNode.put(i++, temp);
-                input.add(tokens[0]);
+            in.mark(4);
+            byte[] magic = in.readNBytes(4);
+            in.reset();
+            if (magic.length == 4 && ((magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16
+                    | (magic[2] & 0xFF) << 8 | (magic[3] & 0xFF)) == TOKEN_MAGIC) {
+                readBinaryInput(new DataInputStream(in));
+            } else {
+                BufferedReader br = new BufferedReader(new InputStreamReader(in));
+                // the symbol is the line up to its first space, kept once per symbol
+                HashMap<String, String> symbols = new HashMap<>();
+                String line;
+                int i = 0;
+                while ((line = br.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    String symbol = symbols.computeIfAbsent(space == -1 ? line : line.substring(0, space), s -> s);
+                    Node temp = new Node(symbol, line);
+                    terminalToNode.put(i++, temp);
+                    input.add(symbol);
+                }
             }
         }catch (IOException e) {
             e.printStackTrace();
@@ -196,6 +215,46 @@ public class SA {
         input.add("#");
     }
 
+    // Token types and lexemes arrive as ids into tables, so no line is split
+    private static void readBinaryInput(DataInputStream in) throws IOException {
+        in.readInt();
+        String[] types = new String[readVarint(in)];
+        for (int t = 0; t < types.length; t++)
+            types[t] = readString(in);
+
+        ArrayList<String> lexemes = new ArrayList<>();
+        int line = 0;
+        int i = 0;
+        int type;
+        while ((type = readVarint(in)) != 0) {
+            line += readVarint(in);
+            int id = readVarint(in);
+            if (id == lexemes.size())
+                lexemes.add(readString(in));
+            String symbol = types[type - 1];
+            terminalToNode.put(i++, new Node(symbol, symbol + " " + line + " " + lexemes.get(id)));
+            input.add(symbol);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException("Token stream ends in the middle of a token");
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
     static Node LRparse(){
         int pointer = 0;
         Stack<Integer> stateStack = new Stack<>();
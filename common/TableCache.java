@@ -0,0 +1,131 @@
+import java.io.*;
+import java.util.*;
+
+// Content-addressed store of generated tables: every entry is a directory named by the
+// SHA-256 of the normalized input, the generator version and the output flags. A hit only
+// touches the entry, so entry modification times order them for LRU eviction. Shared by GLA
+// and GSA, which compile it with -sourcepath ../common.
+public class TableCache {
+    final File dir;
+    final long maxBytes;
+
+    TableCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    // --cache=DIR and --cache-size=MB override the defaults, --no-cache turns caching off
+    static TableCache fromArgs(String[] args, String tool) {
+        File dir = new File(System.getProperty("user.home"), ".cache/ppj/" + tool);
+        long maxBytes = 64L << 20;
+        for (String arg : args) {
+            if (arg.equals("--no-cache"))
+                return null;
+            if (arg.startsWith("--cache="))
+                dir = new File(arg.substring("--cache=".length()));
+            else if (arg.startsWith("--cache-size="))
+                maxBytes = Long.parseLong(arg.substring("--cache-size=".length())) << 20;
+        }
+        return new TableCache(dir, maxBytes);
+    }
+
+    // Digest of the class files of tool, so rebuilding the generator starts a fresh set of
+    // keys. Falls back to the class name when they cannot be read, e.g. from a jar.
+    static String generatorVersion(Class<?> tool) {
+        try {
+            File dir = new File(tool.getProtectionDomain().getCodeSource().getLocation().toURI());
+            File[] classes = dir.listFiles((d, name) -> name.startsWith(tool.getSimpleName()) && name.endsWith(".class"));
+            if (classes == null)
+                return tool.getName();
+            Arrays.sort(classes);
+            java.security.MessageDigest sha = java.security.MessageDigest.getInstance("SHA-256");
+            for (File file : classes)
+                sha.update(java.nio.file.Files.readAllBytes(file.toPath()));
+            return HexFormat.of().formatHex(sha.digest());
+        } catch (Exception e) {
+            return tool.getName();
+        }
+    }
+
+    static String key(String... parts) {
+        try {
+            java.security.MessageDigest sha = java.security.MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                sha.update(part.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                sha.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(sha.digest());
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Copies the files of entry key into out, false on a miss or an unreadable entry
+    boolean restore(String key, File out) {
+        File entry = new File(dir, key);
+        File[] files = entry.listFiles();
+        if (files == null)
+            return false;
+        try {
+            for (File file : files)
+                java.nio.file.Files.copy(file.toPath(), new File(out, file.getName()).toPath(),
+                        java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Ignoring cache entry " + entry + ": " + e.getMessage());
+            return false;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    // Saves the named files of out that exist as entry key, then evicts down to maxBytes.
+    // The entry is assembled in a temporary directory and renamed into place, so concurrent
+    // builds never see half of one.
+    void store(String key, File out, String... names) {
+        File temp = new File(dir, key + ".tmp" + System.nanoTime());
+        try {
+            if (!temp.mkdirs())
+                throw new IOException("cannot create " + temp);
+            for (String name : names) {
+                File file = new File(out, name);
+                if (file.exists())
+                    java.nio.file.Files.copy(file.toPath(), new File(temp, name).toPath());
+            }
+            if (!temp.renameTo(new File(dir, key)))
+                delete(temp);
+            evict();
+        } catch (IOException e) {
+            System.err.println("Could not cache tables in " + dir + ": " + e.getMessage());
+            delete(temp);
+        }
+    }
+
+    // Keeps entries from the most recently used down while they fit in maxBytes. An entry that
+    // would overflow is deleted, but older ones are still checked, so one large entry does not
+    // evict every smaller one behind it. The newest entry always stays.
+    void evict() {
+        File[] entries = dir.listFiles(f -> f.isDirectory() && !f.getName().contains(".tmp"));
+        if (entries == null)
+            return;
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified).reversed());
+        long total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            long size = 0;
+            File[] files = entries[i].listFiles();
+            for (File file : files == null ? new File[0] : files)
+                size += file.length();
+            if (i > 0 && total + size > maxBytes)
+                delete(entries[i]);
+            else
+                total += size;
+        }
+    }
+
+    static void delete(File entry) {
+        File[] files = entry.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        entry.delete();
+    }
+}